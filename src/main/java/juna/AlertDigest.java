@@ -0,0 +1,129 @@
+package juna;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Entry point for train alerts. In digest mode all alerts for the same
+ * recipient within the coalescing window are merged into a single email,
+ * otherwise every alert is sent straight away.
+ */
+@Component
+public class AlertDigest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AlertDigest.class);
+
+    private static final String SEPARATOR = "\n\n----------------------------------------\n\n";
+
+    @Autowired
+    private EmailService emailService;
+
+    @Value("${juna.email.digest.enabled:false}")
+    private boolean enabled;
+
+    @Value("${juna.email.digest.windowSeconds:60}")
+    private int windowSeconds;
+
+    // guarded by this
+    private final Map<String, List<Alert>> pending = new HashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    private static class Alert {
+
+        private final String subject;
+        private final String text;
+        private final long eventTime;
+
+        public Alert(String subject, String text, long eventTime) {
+            this.subject = subject;
+            this.text = text;
+            this.eventTime = eventTime;
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled)
+            return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "alert-digest");
+            thread.setDaemon(true);
+            return thread;
+        });
+        LOGGER.info("Coalescing alerts per recipient over {} seconds", windowSeconds);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (scheduler == null)
+            return;
+        scheduler.shutdownNow();
+        List<String> recipients;
+        synchronized (this) {
+            recipients = new ArrayList<>(pending.keySet());
+        }
+        for (String to : recipients) {
+            flush(to);
+        }
+    }
+
+    public void sendAlert(String to, String subject, String text, long eventTime) {
+        if (!enabled) {
+            emailService.sendSimpleMessage(to, subject, text, eventTime);
+            return;
+        }
+        synchronized (this) {
+            List<Alert> alerts = pending.get(to);
+            if (alerts == null) {
+                alerts = new ArrayList<>(2);
+                pending.put(to, alerts);
+                scheduler.schedule(() -> flush(to), windowSeconds, TimeUnit.SECONDS);
+            }
+            alerts.add(new Alert(subject, text, eventTime));
+        }
+    }
+
+    private void flush(String to) {
+        List<Alert> alerts;
+        synchronized (this) {
+            alerts = pending.remove(to);
+        }
+        if (alerts == null || alerts.isEmpty())
+            return;
+        if (alerts.size() == 1) {
+            Alert alert = alerts.get(0);
+            emailService.sendSimpleMessage(to, alert.subject, alert.text, alert.eventTime);
+            return;
+        }
+        int length = 0;
+        long eventTime = Long.MAX_VALUE;
+        for (Alert alert : alerts) {
+            length += alert.subject.length() + alert.text.length() + SEPARATOR.length() + 2;
+            eventTime = Math.min(eventTime, alert.eventTime);
+        }
+        StringBuilder text = new StringBuilder(length);
+        for (Alert alert : alerts) {
+            if (text.length() > 0) {
+                text.append(SEPARATOR);
+            }
+            text.append(alert.subject).append("\n\n").append(alert.text);
+        }
+        LOGGER.info("Sending digest of {} alerts to {}", alerts.size(), to);
+        emailService.sendSimpleMessage(to, alerts.size() + " ilmoitusta seuraamistasi junista", text.toString(), eventTime);
+    }
+}
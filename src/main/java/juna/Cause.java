@@ -0,0 +1,53 @@
+package juna;
+
+import java.util.Objects;
+
+public class Cause {
+
+    private final String categoryCode;
+    private final String detailedCategoryCode;
+    private final String thirdCategoryCode;
+
+    public Cause(String categoryCode, String detailedCategoryCode, String thirdCategoryCode) {
+        this.categoryCode = categoryCode;
+        this.detailedCategoryCode = detailedCategoryCode;
+        this.thirdCategoryCode = thirdCategoryCode;
+    }
+
+    public String getCategoryCode() {
+        return categoryCode;
+    }
+
+    public String getDetailedCategoryCode() {
+        return detailedCategoryCode;
+    }
+
+    public String getThirdCategoryCode() {
+        return thirdCategoryCode;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 31 + (categoryCode == null ? 0 : categoryCode.hashCode());
+        result = 31 * result + (detailedCategoryCode == null ? 0 : detailedCategoryCode.hashCode());
+        result = 31 * result + (thirdCategoryCode == null ? 0 : thirdCategoryCode.hashCode());
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof Cause))
+            return false;
+        Cause other = (Cause) obj;
+        return Objects.equals(categoryCode, other.categoryCode)
+                && Objects.equals(detailedCategoryCode, other.detailedCategoryCode)
+                && Objects.equals(thirdCategoryCode, other.thirdCategoryCode);
+    }
+
+    @Override
+    public String toString() {
+        return categoryCode + "/" + detailedCategoryCode + "/" + thirdCategoryCode;
+    }
+}
@@ -0,0 +1,57 @@
+package juna;
+
+import java.util.Map;
+
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBAttribute;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBHashKey;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBTable;
+
+/**
+ * Heartbeat of one notifier instance, see {@link DynamoDBClusterMembership}.
+ */
+@DynamoDBTable(tableName = "ClusterMember")
+public class ClusterMember {
+
+    private String nodeId;
+    private Long heartbeatAt;
+    private Map<String, Long> changedTrains;
+
+    public ClusterMember() {
+    }
+
+    public ClusterMember(String nodeId, long heartbeatAt) {
+        this.nodeId = nodeId;
+        this.heartbeatAt = heartbeatAt;
+    }
+
+    @DynamoDBHashKey
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @DynamoDBAttribute
+    public Long getHeartbeatAt() {
+        return heartbeatAt;
+    }
+
+    /**
+     * trainNumber -> when the node announced that its subscribers changed, for
+     * the announcements of the last juna.cluster.expiryMillis.
+     */
+    @DynamoDBAttribute
+    public Map<String, Long> getChangedTrains() {
+        return changedTrains;
+    }
+
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    public void setHeartbeatAt(Long heartbeatAt) {
+        this.heartbeatAt = heartbeatAt;
+    }
+
+    public void setChangedTrains(Map<String, Long> changedTrains) {
+        this.changedTrains = changedTrains;
+    }
+}
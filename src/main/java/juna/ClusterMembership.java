@@ -0,0 +1,36 @@
+package juna;
+
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * The notifier instances currently sharing the trains, see
+ * {@link ShardAssignment}.
+ */
+public interface ClusterMembership {
+
+    String getNodeId();
+
+    /**
+     * Ids of the live nodes, including this one.
+     */
+    Set<String> getMembers();
+
+    /**
+     * Registers a listener which is called whenever a node joins or leaves.
+     */
+    void addMembersListener(Runnable listener);
+
+    /**
+     * Tells the other nodes that the subscribers of the trains have changed.
+     * This node is not told, its own index already holds the change.
+     */
+    void announceChangedTrains(Set<Integer> trainNumbers);
+
+    /**
+     * Registers a listener which is called with the trains announced by the
+     * other nodes, once the changes can be read back from the TrainSubscription
+     * table.
+     */
+    void addChangedTrainsListener(Consumer<Set<Integer>> listener);
+}
@@ -0,0 +1,218 @@
+package juna;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBScanExpression;
+import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
+import com.amazonaws.services.dynamodbv2.util.TableUtils;
+
+/**
+ * {@link ClusterMembership} over heartbeats in the ClusterMember table. Every
+ * node writes its heartbeat each juna.cluster.heartbeatMillis and reads the
+ * others back; nodes without a heartbeat for juna.cluster.expiryMillis are
+ * considered gone. Heartbeats are compared with the local clock, so the expiry
+ * has to cover the clock skew between nodes.
+ *
+ * Changed trains ride along with the heartbeats for juna.cluster.expiryMillis
+ * and are handed to the listeners of the other nodes one heartbeat after they
+ * were announced, by when the announcing node has flushed its writes.
+ */
+@Component
+@ConditionalOnProperty(name = "juna.cluster.membership", havingValue = "dynamodb")
+public class DynamoDBClusterMembership implements ClusterMembership {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DynamoDBClusterMembership.class);
+
+    @Autowired
+    private AmazonDynamoDB amazonDynamoDB;
+
+    @Value("${juna.cluster.nodeId:}")
+    private String nodeId;
+
+    @Value("${juna.cluster.heartbeatMillis:5000}")
+    private long heartbeatMillis;
+
+    @Value("${juna.cluster.expiryMillis:20000}")
+    private long expiryMillis;
+
+    @Value("${juna.dynamodb.readCapacity:1}")
+    private long readCapacity;
+
+    @Value("${juna.dynamodb.writeCapacity:1}")
+    private long writeCapacity;
+
+    private final CopyOnWriteArrayList<Runnable> listeners = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<Consumer<Set<Integer>>> changedTrainsListeners = new CopyOnWriteArrayList<>();
+
+    // trainNumber -> when this node announced it
+    private final Map<Integer, Long> announced = new ConcurrentHashMap<>();
+
+    // nodeId -> announcements up to which have been handed to the listeners, heartbeat thread only
+    private final Map<String, Long> seenUntil = new HashMap<>();
+    private long joinedAt;
+
+    private DynamoDBMapper mapper;
+    private ScheduledExecutorService heartbeats;
+    private volatile Set<String> members;
+
+    @PostConstruct
+    public void start() throws Exception {
+        if (nodeId == null || nodeId.isEmpty()) {
+            nodeId = InetAddress.getLocalHost().getHostName() + "-" + UUID.randomUUID().toString().substring(0, 8);
+        }
+        mapper = new DynamoDBMapper(amazonDynamoDB);
+        CreateTableRequest tableRequest = mapper.generateCreateTableRequest(ClusterMember.class);
+        tableRequest.setProvisionedThroughput(new ProvisionedThroughput(readCapacity, writeCapacity));
+        if (TableUtils.createTableIfNotExists(amazonDynamoDB, tableRequest)) {
+            TableUtils.waitUntilActive(amazonDynamoDB, tableRequest.getTableName());
+        }
+
+        members = Collections.singleton(nodeId);
+        // earlier changes are in the subscriptions loaded at startup
+        joinedAt = System.currentTimeMillis();
+        heartbeat();
+        heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cluster-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeats.scheduleWithFixedDelay(this::heartbeat, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        LOGGER.info("Node {} joined with members {}", nodeId, members);
+    }
+
+    @PreDestroy
+    public void stop() {
+        heartbeats.shutdownNow();
+        try {
+            // lets the others take over without waiting for the expiry
+            mapper.delete(new ClusterMember(nodeId, 0));
+        } catch (Exception e) {
+            LOGGER.warn("Could not remove heartbeat of node {}", nodeId, e);
+        }
+    }
+
+    private void heartbeat() {
+        try {
+            long now = System.currentTimeMillis();
+            announced.values().removeIf(at -> now - at > expiryMillis);
+            ClusterMember heartbeat = new ClusterMember(nodeId, now);
+            if (!announced.isEmpty()) {
+                Map<String, Long> changedTrains = new HashMap<>();
+                announced.forEach((trainNumber, at) -> changedTrains.put(trainNumber.toString(), at));
+                heartbeat.setChangedTrains(changedTrains);
+            }
+            mapper.save(heartbeat);
+            Set<String> live = new TreeSet<>();
+            live.add(nodeId);
+            Set<Integer> changed = new HashSet<>();
+            long settled = now - heartbeatMillis;
+            for (ClusterMember member : mapper.scan(ClusterMember.class, new DynamoDBScanExpression())) {
+                if (member.getHeartbeatAt() != null && now - member.getHeartbeatAt() < expiryMillis) {
+                    live.add(member.getNodeId());
+                    // the own index is already up to date, reloading could only undo unflushed changes
+                    if (!nodeId.equals(member.getNodeId())) {
+                        collectChangedTrains(member, settled, changed);
+                    }
+                }
+            }
+            seenUntil.keySet().retainAll(live);
+            if (!changed.isEmpty()) {
+                fireChangedTrains(changed);
+            }
+            if (!live.equals(members)) {
+                LOGGER.info("Cluster members changed from {} to {}", members, live);
+                members = Collections.unmodifiableSet(live);
+                fireMembersChanged();
+            }
+        } catch (Exception e) {
+            // keeps the last known members, at worst trains are handled twice
+            LOGGER.error("Could not update heartbeat of node {}", nodeId, e);
+        }
+    }
+
+    @Override
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public Set<String> getMembers() {
+        return members;
+    }
+
+    @Override
+    public void addMembersListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void announceChangedTrains(Set<Integer> trainNumbers) {
+        long now = System.currentTimeMillis();
+        for (Integer trainNumber : trainNumbers) {
+            announced.put(trainNumber, now);
+        }
+    }
+
+    @Override
+    public void addChangedTrainsListener(Consumer<Set<Integer>> listener) {
+        changedTrainsListeners.add(listener);
+    }
+
+    private void collectChangedTrains(ClusterMember member, long settled, Set<Integer> changed) {
+        long seen = seenUntil.getOrDefault(member.getNodeId(), joinedAt);
+        if (member.getChangedTrains() != null) {
+            for (Map.Entry<String, Long> entry : member.getChangedTrains().entrySet()) {
+                if (entry.getValue() > seen && entry.getValue() <= settled) {
+                    changed.add(Integer.valueOf(entry.getKey()));
+                }
+            }
+        }
+        seenUntil.put(member.getNodeId(), Math.max(seen, settled));
+    }
+
+    private void fireChangedTrains(Set<Integer> changed) {
+        for (Consumer<Set<Integer>> listener : changedTrainsListeners) {
+            try {
+                listener.accept(changed);
+            } catch (Throwable t) {
+                LOGGER.error("Could not notify changed trains listener {}", listener, t);
+            }
+        }
+    }
+
+    private void fireMembersChanged() {
+        for (Runnable listener : listeners) {
+            try {
+                listener.run();
+            } catch (Throwable t) {
+                LOGGER.error("Could not notify members listener {}", listener, t);
+            }
+        }
+    }
+}
@@ -2,18 +2,23 @@ package juna;
 
 import org.socialsignin.spring.data.dynamodb.repository.config.EnableDynamoDBRepositories;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.util.StringUtils;
 
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 
+import io.micrometer.core.instrument.MeterRegistry;
+
 @Configuration
-@EnableDynamoDBRepositories
-  (basePackages = "com.baeldung.spring.data.dynamodb.repositories")
+@ConditionalOnProperty(name = "juna.storage", havingValue = "dynamodb", matchIfMissing = true)
+@EnableDynamoDBRepositories("juna")
 public class DynamoDBConfig {
  
     @Value("${amazon.dynamodb.endpoint}")
@@ -26,9 +31,10 @@ public class DynamoDBConfig {
     private String amazonAWSSecretKey;
  
     @Bean
-    public AmazonDynamoDB amazonDynamoDB() {
+    public AmazonDynamoDB amazonDynamoDB(MeterRegistry meterRegistry) {
         AmazonDynamoDB amazonDynamoDB 
-          = new AmazonDynamoDBClient(amazonAWSCredentials());
+          = new AmazonDynamoDBClient(new AWSStaticCredentialsProvider(amazonAWSCredentials()),
+              new ClientConfiguration(), new DynamoDBMetricCollector(meterRegistry));
          
         if (!StringUtils.isEmpty(amazonDynamoDBEndpoint)) {
             amazonDynamoDB.setEndpoint(amazonDynamoDBEndpoint);
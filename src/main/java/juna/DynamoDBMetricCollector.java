@@ -0,0 +1,46 @@
+package juna;
+
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.metrics.RequestMetricCollector;
+import com.amazonaws.util.AWSRequestMetrics.Field;
+import com.amazonaws.util.TimingInfo;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Records the latency of every DynamoDB call, including the SDK's own retries,
+ * and the number of throttled attempts per operation.
+ */
+public class DynamoDBMetricCollector extends RequestMetricCollector {
+
+    private final MeterRegistry meterRegistry;
+
+    public DynamoDBMetricCollector(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public void collectMetrics(Request<?> request, Response<?> response) {
+        String operation = operation(request);
+        TimingInfo timing = request.getAWSRequestMetrics().getTimingInfo();
+        Double millis = timing.getTimeTakenMillisIfKnown();
+        if (millis != null) {
+            meterRegistry.timer("juna.dynamodb.requests", "operation", operation, "result", response != null ? "success" : "error")
+                    .record((long) (millis * 1000), TimeUnit.MICROSECONDS);
+        }
+        Number throttled = timing.getCounter(Field.ThrottleException.name());
+        if (throttled != null && throttled.longValue() > 0) {
+            meterRegistry.counter("juna.dynamodb.throttled", "operation", operation).increment(throttled.doubleValue());
+        }
+    }
+
+    private static String operation(Request<?> request) {
+        if (request.getOriginalRequest() == null)
+            return "unknown";
+        String name = request.getOriginalRequest().getClass().getSimpleName();
+        return name.endsWith("Request") ? name.substring(0, name.length() - "Request".length()) : name;
+    }
+}
@@ -4,4 +4,10 @@ public interface EmailService {
 
     void sendSimpleMessage(String to, String subject, String text);
 
+    /**
+     * Sends an alert caused by an upstream event at eventTime (epoch millis),
+     * the time from the event to the SMTP handoff is recorded as juna.alerts.latency.
+     */
+    void sendSimpleMessage(String to, String subject, String text, long eventTime);
+
 }
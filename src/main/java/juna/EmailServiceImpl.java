@@ -1,14 +1,37 @@
 package juna;
 
-import java.util.concurrent.ForkJoinPool;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
 import org.springframework.mail.SimpleMailMessage;
 import org.springframework.mail.javamail.JavaMailSender;
 import org.springframework.stereotype.Component;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Sends emails from a bounded queue on a fixed set of dedicated workers. Each
+ * worker drains up to a batch of messages and hands them to the
+ * {@link JavaMailSender} at once, which delivers the whole batch over a single
+ * SMTP connection. Failed messages are retried with exponential backoff.
+ */
 @Component
 public class EmailServiceImpl implements EmailService {
 
@@ -20,19 +43,175 @@ public class EmailServiceImpl implements EmailService {
     @Autowired
     public JavaMailSender emailSender;
 
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${juna.email.queueCapacity:10000}")
+    private int queueCapacity;
+
+    @Value("${juna.email.workers:2}")
+    private int workerCount;
+
+    @Value("${juna.email.batchSize:50}")
+    private int batchSize;
+
+    @Value("${juna.email.maxAttempts:5}")
+    private int maxAttempts;
+
+    @Value("${juna.email.retryBackoffMillis:2000}")
+    private long retryBackoffMillis;
+
+    private BlockingQueue<PendingEmail> queue;
+    private List<Thread> workers;
+    private ScheduledExecutorService retryScheduler;
+    private volatile boolean running;
+
+    private Timer sendTimer;
+    private Timer alertLatency;
+    private Counter sent;
+    private Counter retried;
+    private Counter failed;
+    private Counter dropped;
+
+    private static class PendingEmail {
+
+        private final SimpleMailMessage message;
+        private final long eventTime;
+        private int attempts;
+
+        public PendingEmail(SimpleMailMessage message, long eventTime) {
+            this.message = message;
+            this.eventTime = eventTime;
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        sendTimer = meterRegistry.timer("juna.email.send");
+        alertLatency = Timer.builder("juna.alerts.latency").publishPercentileHistogram().register(meterRegistry);
+        sent = meterRegistry.counter("juna.email.messages", "result", "sent");
+        retried = meterRegistry.counter("juna.email.messages", "result", "retried");
+        failed = meterRegistry.counter("juna.email.messages", "result", "failed");
+        dropped = meterRegistry.counter("juna.email.messages", "result", "dropped");
+        meterRegistry.gauge("juna.email.queue", queue, BlockingQueue::size);
+
+        running = true;
+        retryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "email-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        workers = new ArrayList<>();
+        for (int i = 0; i < Math.max(1, workerCount); i++) {
+            Thread worker = new Thread(this::dispatch, "email-dispatcher-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+        LOGGER.info("Started {} email workers with queue capacity {} and batch size {}", workers.size(), queueCapacity, batchSize);
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        retryScheduler.shutdownNow();
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        if (!queue.isEmpty()) {
+            LOGGER.warn("Stopping with {} unsent emails", queue.size());
+        }
+    }
+
     @Override
     public void sendSimpleMessage(String to, String subject, String text) {
-        ForkJoinPool.commonPool().execute(() -> {
+        sendSimpleMessage(to, subject, text, 0);
+    }
+
+    @Override
+    public void sendSimpleMessage(String to, String subject, String text, long eventTime) {
+        SimpleMailMessage message = new SimpleMailMessage();
+        message.setTo(to);
+        message.setFrom(juna.getFromEmail());
+        message.setSubject(subject);
+        message.setText(text + "\n\nMessage sent from " + juna.getServername() +"/trains");
+        enqueue(new PendingEmail(message, eventTime));
+    }
+
+    private void enqueue(PendingEmail email) {
+        if (!queue.offer(email)) {
+            dropped.increment();
+            LOGGER.error("Email queue is full, dropping email with subject {} to {}", email.message.getSubject(), email.message.getTo());
+        }
+    }
+
+    private void dispatch() {
+        List<PendingEmail> batch = new ArrayList<>(batchSize);
+        while (running) {
             try {
-                SimpleMailMessage message = new SimpleMailMessage();
-                message.setTo(to);
-                message.setFrom(juna.getFromEmail());
-                message.setSubject(subject);
-                message.setText(text + "\n\nMessage sent from " + juna.getServername() +"/trains");
-                emailSender.send(message);
+                batch.add(queue.take());
+                queue.drainTo(batch, Math.max(0, batchSize - 1));
+                send(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
             } catch (Throwable t) {
-                LOGGER.error("Could not send email with subject {} to {}", subject, to, t);
+                LOGGER.error("Could not dispatch {} emails", batch.size(), t);
+            } finally {
+                batch.clear();
             }
-        });
+        }
+    }
+
+    private void send(List<PendingEmail> batch) {
+        SimpleMailMessage[] messages = new SimpleMailMessage[batch.size()];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = batch.get(i).message;
+        }
+        long start = System.nanoTime();
+        try {
+            emailSender.send(messages);
+            for (PendingEmail email : batch) {
+                sent(email);
+            }
+        } catch (MailSendException e) {
+            // failed messages are keyed by the original SimpleMailMessage instances
+            Map<Object, Exception> failedMessages = e.getFailedMessages();
+            for (PendingEmail email : batch) {
+                Exception cause = failedMessages.get(email.message);
+                if (cause != null || failedMessages.isEmpty()) {
+                    retry(email, cause != null ? cause : e);
+                } else {
+                    sent(email);
+                }
+            }
+        } catch (MailException e) {
+            for (PendingEmail email : batch) {
+                retry(email, e);
+            }
+        } finally {
+            sendTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void sent(PendingEmail email) {
+        sent.increment();
+        if (email.eventTime > 0) {
+            alertLatency.record(System.currentTimeMillis() - email.eventTime, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void retry(PendingEmail email, Exception cause) {
+        email.attempts++;
+        if (email.attempts >= maxAttempts || !running) {
+            failed.increment();
+            LOGGER.error("Could not send email with subject {} to {} after {} attempts", email.message.getSubject(), email.message.getTo(), email.attempts, cause);
+            return;
+        }
+        long delay = retryBackoffMillis << Math.min(email.attempts - 1, 10);
+        retried.increment();
+        LOGGER.warn("Could not send email with subject {} to {}, retrying in {} ms", email.message.getSubject(), email.message.getTo(), delay, cause);
+        retryScheduler.schedule(() -> enqueue(email), delay, TimeUnit.MILLISECONDS);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,125 @@
+package juna;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * {@link ClusterMembership} of the nodes in this JVM which share a group name.
+ * The default, where a single instance owns every train; several application
+ * contexts or harness nodes in one process form a cluster without any
+ * external coordination.
+ */
+@Component
+@ConditionalOnProperty(name = "juna.cluster.membership", havingValue = "memory", matchIfMissing = true)
+public class InMemoryClusterMembership implements ClusterMembership {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InMemoryClusterMembership.class);
+
+    private static final Map<String, Set<InMemoryClusterMembership>> GROUPS = new ConcurrentHashMap<>();
+
+    @Value("${juna.cluster.group:juna}")
+    private String group;
+
+    @Value("${juna.cluster.nodeId:}")
+    private String nodeId;
+
+    private final CopyOnWriteArrayList<Runnable> listeners = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<Consumer<Set<Integer>>> changedTrainsListeners = new CopyOnWriteArrayList<>();
+
+    public InMemoryClusterMembership() {
+    }
+
+    public InMemoryClusterMembership(String group, String nodeId) {
+        this.group = group;
+        this.nodeId = nodeId;
+    }
+
+    @PostConstruct
+    public void join() {
+        if (nodeId == null || nodeId.isEmpty()) {
+            nodeId = ManagementFactory.getRuntimeMXBean().getName() + "-" + System.identityHashCode(this);
+        }
+        GROUPS.computeIfAbsent(group, g -> ConcurrentHashMap.newKeySet()).add(this);
+        LOGGER.info("Node {} joined group {}", nodeId, group);
+        fireMembersChanged();
+    }
+
+    @PreDestroy
+    public void leave() {
+        Set<InMemoryClusterMembership> members = GROUPS.get(group);
+        if (members != null && members.remove(this)) {
+            LOGGER.info("Node {} left group {}", nodeId, group);
+            fireMembersChanged();
+        }
+    }
+
+    @Override
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public Set<String> getMembers() {
+        Set<String> ids = new TreeSet<>();
+        ids.add(nodeId);
+        for (InMemoryClusterMembership member : GROUPS.getOrDefault(group, Collections.emptySet())) {
+            ids.add(member.nodeId);
+        }
+        return ids;
+    }
+
+    @Override
+    public void addMembersListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void announceChangedTrains(Set<Integer> trainNumbers) {
+        // delivered right away, the nodes of one process share their repository;
+        // never to this node, whose index is already up to date while the
+        // TrainSubscription table may not have been written yet
+        for (InMemoryClusterMembership member : GROUPS.getOrDefault(group, Collections.emptySet())) {
+            if (member == this)
+                continue;
+            for (Consumer<Set<Integer>> listener : member.changedTrainsListeners) {
+                try {
+                    listener.accept(trainNumbers);
+                } catch (Throwable t) {
+                    LOGGER.error("Could not notify changed trains listener {}", listener, t);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void addChangedTrainsListener(Consumer<Set<Integer>> listener) {
+        changedTrainsListeners.add(listener);
+    }
+
+    private void fireMembersChanged() {
+        for (InMemoryClusterMembership member : GROUPS.getOrDefault(group, Collections.emptySet())) {
+            for (Runnable listener : member.listeners) {
+                try {
+                    listener.run();
+                } catch (Throwable t) {
+                    LOGGER.error("Could not notify members listener {}", listener, t);
+                }
+            }
+        }
+    }
+}
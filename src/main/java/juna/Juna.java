@@ -1,8 +1,10 @@
 package juna;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,13 +13,38 @@ public class Juna {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Juna.class);
 
+    private static final String UNKNOWN_CAUSE = "Tuntematon / Ei julkaistu";
+
+    // distinct cause triples are few, this only guards against garbage codes
+    private static final int MAX_CACHED_CAUSES = 4096;
+
     private final String servername;
     private final String fromEmail;
     
-    private Map<String, Map<String, Object>> stations = new HashMap<>();
-    private Map<String, Map<String, Object>> causeCategoryCodes = new HashMap<>();
-    private Map<String, Map<String, Object>> detailedCategoryCodes = new HashMap<>();
-    private Map<String, Map<String, Object>> thirdCategoryCodes = new HashMap<>();
+    // replaced as a whole so readers never see a half updated set of catalogues
+    private volatile Metadata metadata = new Metadata(Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap());
+
+    /**
+     * Immutable code -> name tables compiled from the raw catalogues. Rendered
+     * cause messages are cached alongside so that replacing the metadata also
+     * drops the cache.
+     */
+    private static class Metadata {
+
+        private final Map<String, String> stationNames;
+        private final Map<String, String> categoryNames;
+        private final Map<String, String> detailedCategoryNames;
+        private final Map<String, String> thirdCategoryNames;
+        private final Map<Cause, String> causeMessages = new ConcurrentHashMap<>();
+
+        public Metadata(Map<String, String> stationNames, Map<String, String> categoryNames,
+                Map<String, String> detailedCategoryNames, Map<String, String> thirdCategoryNames) {
+            this.stationNames = stationNames;
+            this.categoryNames = categoryNames;
+            this.detailedCategoryNames = detailedCategoryNames;
+            this.thirdCategoryNames = thirdCategoryNames;
+        }
+    }
     
     public Juna(String servername, String fromEmail) {
         this.servername = servername;
@@ -32,90 +59,95 @@ public class Juna {
         return fromEmail;
     }
 
-    public void addStations(List<Map<String, Object>> stationss) {
-        for (Map<String, Object> station : stationss) {
-            String stationShortCode = (String) station.get("stationShortCode");
-            stations.put(stationShortCode, station);
-        }
+    public void setMetadata(List<Map<String, Object>> stations, List<Map<String, Object>> causeCategoryCodes,
+            List<Map<String, Object>> detailedCategoryCodes, List<Map<String, Object>> thirdCategoryCodes) {
+        Metadata metadata = new Metadata(
+                compile(stations, "stationShortCode", "stationName"),
+                compile(causeCategoryCodes, "categoryCode", "categoryName"),
+                compile(detailedCategoryCodes, "detailedCategoryCode", "detailedCategoryName"),
+                compile(thirdCategoryCodes, "thirdCategoryCode", "thirdCategoryName"));
+        this.metadata = metadata;
+        LOGGER.info("Using metadata of {} stations and {}/{}/{} cause codes", metadata.stationNames.size(),
+                metadata.categoryNames.size(), metadata.detailedCategoryNames.size(), metadata.thirdCategoryNames.size());
     }
 
-    public String getStationNameByShortCode(String shortCode) {
-        String stationName = shortCode;
-        Map<String, Object> stat = stations.get(shortCode);
-        if (stat != null) {
-            String possibleStationName = (String) stat.get("stationName");
-            if (possibleStationName != null) {
-                stationName = possibleStationName;
+    private static Map<String, String> compile(List<Map<String, Object>> items, String keyField, String nameField) {
+        if (items == null)
+            return Collections.emptyMap();
+        Map<String, String> names = new HashMap<>(items.size() * 2);
+        for (Map<String, Object> item : items) {
+            Object key = item.get(keyField);
+            Object name = item.get(nameField);
+            if (key != null && name != null) {
+                // codes are interned by LiveTrainsMessageConverter too
+                names.put(((String) key).intern(), (String) name);
             }
         }
-        return stationName;
+        return Collections.unmodifiableMap(names);
     }
 
-    public void addCauseCategoryCodes(List<Map<String, Object>> causeCategoryCodes) {
-        for (Map<String, Object> causeCategoryCode : causeCategoryCodes) {
-            String categoryCode = (String) causeCategoryCode.get("categoryCode");
-            this.causeCategoryCodes.put(categoryCode, causeCategoryCode);
-        }
-    }
-
-    public void addDetailedCauseCategoryCodes(List<Map<String, Object>> causeCategoryCodes) {
-        for (Map<String, Object> causeCategoryCode : causeCategoryCodes) {
-            String detailedCategoryCode = (String) causeCategoryCode.get("detailedCategoryCode");
-            this.detailedCategoryCodes.put(detailedCategoryCode, causeCategoryCode);
-        }
+    public String getStationNameByShortCode(String shortCode) {
+        if (shortCode == null)
+            return null;
+        return metadata.stationNames.getOrDefault(shortCode, shortCode);
     }
 
-    public void addThirdCauseCategoryCodes(List<Map<String, Object>> causeCategoryCodes) {
-        for (Map<String, Object> causeCategoryCode : causeCategoryCodes) {
-            String thirdCategoryCode = (String) causeCategoryCode.get("thirdCategoryCode");
-            this.thirdCategoryCodes.put(thirdCategoryCode, causeCategoryCode);
+    public String resolveCauseToHumanMessage(Cause cause) {
+        if (cause == null)
+            return UNKNOWN_CAUSE;
+        Metadata metadata = this.metadata;
+        String message = metadata.causeMessages.get(cause);
+        if (message == null) {
+            message = render(metadata, cause.getCategoryCode(), cause.getDetailedCategoryCode(), cause.getThirdCategoryCode());
+            if (metadata.causeMessages.size() < MAX_CACHED_CAUSES) {
+                metadata.causeMessages.put(cause, message);
+            }
         }
+        return message;
     }
 
     public String resolveCauseCodesToHumanMessage(List<String> causes) {
         if (causes == null || causes.size() == 0)
-            return "Tuntematon / Ei julkaistu";
+            return UNKNOWN_CAUSE;
+
+        String categoryCode = causes.get(0);
+        String detailedCategoryCode = null;
+        String thirdCategoryCode = null;
+        if (causes.size() > 1)
+            detailedCategoryCode = causes.get(1);
+        if (causes.size() > 2)
+            thirdCategoryCode = causes.get(2);
+        return resolveCauseCodesToHumanMessage(categoryCode, detailedCategoryCode, thirdCategoryCode);
+    }
+
+    public String resolveCauseCodesToHumanMessage(String categoryCode, String detailedCategoryCode, String thirdCategoryCode) {
+        return resolveCauseToHumanMessage(new Cause(categoryCode, detailedCategoryCode, thirdCategoryCode));
+    }
 
+    private static String render(Metadata metadata, String categoryCode, String detailedCategoryCode, String thirdCategoryCode) {
         try {
-            String categoryCode = causes.get(0);
-            String detailedCategoryCode = null;
-            String thirdCategoryCode = null;
-            if (causes.size() > 1)
-                detailedCategoryCode = causes.get(1);
-            if (causes.size() > 2)
-                thirdCategoryCode = causes.get(2);
-            
             StringBuilder syy = new StringBuilder();
-            Map<String, Object> causeCategoryCode = causeCategoryCodes.get(categoryCode);
-            if (causeCategoryCode != null) {
-                Object categoryName = causeCategoryCode.get("categoryName");
-                if (categoryName != null) {
-                    syy.append(categoryName);
-                }
+            String categoryName = categoryCode != null ? metadata.categoryNames.get(categoryCode) : null;
+            if (categoryName != null) {
+                syy.append(categoryName);
             }
             if (detailedCategoryCode != null) {
-                Map<String, Object> detailedCauseCategoryCode = detailedCategoryCodes.get(detailedCategoryCode);
-                if (detailedCauseCategoryCode != null) {
-                    Object detailedCategoryName = detailedCauseCategoryCode.get("detailedCategoryName");
-                    if (detailedCategoryName != null) {
-                        syy.append(" : ").append(detailedCategoryName);
-                    }
+                String detailedCategoryName = metadata.detailedCategoryNames.get(detailedCategoryCode);
+                if (detailedCategoryName != null) {
+                    syy.append(" : ").append(detailedCategoryName);
                 }
             }
             if (thirdCategoryCode != null) {
-                Map<String, Object> thirdCauseCategoryCode = thirdCategoryCodes.get(thirdCategoryCode);
-                if (thirdCauseCategoryCode != null) {
-                    Object thirdCategoryName = thirdCauseCategoryCode.get("thirdCategoryName");
-                    if (thirdCategoryName != null) {
-                        syy.append(" : ").append(thirdCategoryName);
-                    }
+                String thirdCategoryName = metadata.thirdCategoryNames.get(thirdCategoryCode);
+                if (thirdCategoryName != null) {
+                    syy.append(" : ").append(thirdCategoryName);
                 }
             }
             return syy.toString();
         } catch (Throwable t) {
-            LOGGER.error("Could not resolve causes to human {}", causes, t);
+            LOGGER.error("Could not resolve causes to human {}/{}/{}", categoryCode, detailedCategoryCode, thirdCategoryCode, t);
             
-            return "Tuntematon / Ei julkaistu";
+            return UNKNOWN_CAUSE;
         }
     }
 }
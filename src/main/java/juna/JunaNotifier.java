@@ -1,34 +1,46 @@
 package juna;
 
 import java.lang.reflect.Type;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
 
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
-import org.joda.time.DateTime;
-import org.socialsignin.spring.data.dynamodb.repository.config.EnableDynamoDBRepositories;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.ComponentScan;
-import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.converter.CompositeMessageConverter;
 import org.springframework.messaging.simp.stomp.StompCommand;
 import org.springframework.messaging.simp.stomp.StompHeaders;
 import org.springframework.messaging.simp.stomp.StompSession;
-import org.springframework.messaging.simp.stomp.StompSessionHandler;
 import org.springframework.messaging.simp.stomp.StompSessionHandlerAdapter;
-import org.springframework.util.MimeType;
 import org.springframework.web.socket.client.WebSocketClient;
 import org.springframework.web.socket.client.jetty.JettyWebSocketClient;
 import org.springframework.web.socket.messaging.WebSocketStompClient;
@@ -38,14 +50,28 @@ import org.springframework.web.socket.sockjs.client.WebSocketTransport;
 
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.model.CreateGlobalSecondaryIndexAction;
 import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndex;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndexDescription;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndexUpdate;
+import com.amazonaws.services.dynamodbv2.model.IndexStatus;
+import com.amazonaws.services.dynamodbv2.model.Projection;
+import com.amazonaws.services.dynamodbv2.model.ProjectionType;
 import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.dynamodbv2.model.UpdateTableRequest;
 import com.amazonaws.services.dynamodbv2.util.TableUtils;
-import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import juna.NotificationRenderer.RenderedAlert;
+import juna.NotificationState.Notification;
 
 @SpringBootApplication
 @ComponentScan("juna")
-@EnableDynamoDBRepositories("juna")
 public class JunaNotifier implements CommandLineRunner {
 
     private static final org.slf4j.Logger LOGGER = org.slf4j.LoggerFactory.getLogger(JunaNotifier.class);
@@ -57,84 +83,191 @@ public class JunaNotifier implements CommandLineRunner {
     @Autowired
     private Juna juna;
     
-    @Autowired
+    @Autowired(required = false)
     private AmazonDynamoDB amazonDynamoDB;
 
     @Autowired
     private UserInfoRepository repository;
-    
+
     @Autowired
-    private EmailService emailService;
+    private SubscriptionIndex subscriptionIndex;
+
+    @Autowired
+    private TrainSubscriptionStore trainSubscriptionStore;
+
+    @Autowired
+    private NotificationState notificationState;
+
+    @Autowired
+    private AlertDigest alertDigest;
+
+    @Autowired
+    private NotificationRenderer notificationRenderer;
+
+    @Autowired
+    private MetadataLoader metadataLoader;
+
+    @Autowired
+    private TrainStatusPublisher trainStatusPublisher;
+
+    @Value("${juna.metadata.timeoutSeconds:30}")
+    private int metadataTimeoutSeconds;
+
+    @Value("${juna.dynamodb.readCapacity:1}")
+    private long readCapacity;
+
+    @Value("${juna.dynamodb.writeCapacity:1}")
+    private long writeCapacity;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${juna.livetrains.maxTrainSubscriptions:200}")
+    private int maxTrainSubscriptions;
+
+    @Value("${juna.ingest.capacity:10000}")
+    private int ingestCapacity;
+
+    @Value("${juna.processing.threads:1}")
+    private int processingThreads;
+
+    @Value("${juna.traintracking.enabled:true}")
+    private boolean trainTracking;
+
+    @Value("${juna.livetrains.websocketUrl:http://rata.digitraffic.fi/api/v1/websockets/}")
+    private String websocketUrl;
+
+    @Value("${juna.livetrains.restUrl:https://rata.digitraffic.fi/api/v1/live-trains}")
+    private String liveTrainsUrl;
 
-    private ObjectMapper objectMapper = new ObjectMapper();
-    
     @Override
     public void run(String... args) throws Exception {
-        DynamoDBMapper mapper = new DynamoDBMapper(amazonDynamoDB);
+        // fetched in the background while the table is being prepared
+        CompletableFuture<Void> metadataReady = metadataLoader.start();
 
-        
-        try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
-            addStations(httpClient);
-            addCauseCategoryCodes(httpClient);
-            addDetailedCauseCategoryCodes(httpClient);
-            addThirdCauseCategoryCodes(httpClient);
+        // no DynamoDB client with juna.storage=local
+        boolean migrate = amazonDynamoDB != null && createTablesIfNotExist();
+
+        if (migrate) {
+            Iterable<UserInfo> users = repository.findAll();
+            trainSubscriptionStore.migrate(users);
+            subscriptionIndex.load(users);
+        } else if (trainSubscriptionStore.isEnabled()) {
+            // the table is kept up to date by the repository, one item per user and train
+            subscriptionIndex.loadSubscriptions(trainSubscriptionStore.findAll());
+        } else {
+            subscriptionIndex.load(repository.findAll());
         }
-        
-        CreateTableRequest tableRequest = mapper.generateCreateTableRequest(UserInfo.class);
-        tableRequest.setProvisionedThroughput(new ProvisionedThroughput(1L, 1L));
-        
-        TableUtils.createTableIfNotExists(amazonDynamoDB, tableRequest);
-        
-        new DigiTransitTrainsWebsocketClient(repository, emailService, juna);
-    }
-    
-    private void addStations(CloseableHttpClient httpClient) {
-        HttpGet stationsGet = new HttpGet("https://rata.digitraffic.fi/api/v1/metadata/stations");
+
         try {
-            CloseableHttpResponse response = httpClient.execute(stationsGet);
-            List<Map<String, Object>> stations = objectMapper.readValue(response.getEntity().getContent(), List.class);
-            juna.addStations(stations);
-        } catch (Throwable t) {
-            LOGGER.error("Could not execute stationsGet {}", stationsGet, t);
+            metadataReady.get(metadataTimeoutSeconds, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            LOGGER.warn("Metadata not available after {} seconds, connecting anyway", metadataTimeoutSeconds);
         }
+
+        TrainUpdateQueue updateQueue = new TrainUpdateQueue(ingestCapacity, meterRegistry);
+        MyStompSessionHandler sessionHandler = new MyStompSessionHandler(subscriptionIndex, notificationState, alertDigest, notificationRenderer, meterRegistry, maxTrainSubscriptions, updateQueue, processingThreads, trainTracking);
+        sessionHandler.setStatusPublisher(trainStatusPublisher);
+        sessionHandler.startProcessing();
+        new DigiTransitTrainsWebsocketClient(sessionHandler, new LiveTrainsMessageConverter(subscriptionIndex, meterRegistry),
+                new TrainTrackingMessageConverter(subscriptionIndex, meterRegistry), websocketUrl, liveTrainsUrl).connect();
+    }
+    
+    /**
+     * Returns true if the TrainSubscription table was created and needs to be
+     * filled from UserInfo.
+     */
+    private boolean createTablesIfNotExist() throws InterruptedException {
+        DynamoDBMapper mapper = new DynamoDBMapper(amazonDynamoDB);
+        createTableIfNotExists(mapper.generateCreateTableRequest(UserInfo.class));
+        return createTableIfNotExists(mapper.generateCreateTableRequest(TrainSubscription.class));
     }
 
-    private void addCauseCategoryCodes(CloseableHttpClient httpClient) {
-        HttpGet causeGet = new HttpGet("https://rata.digitraffic.fi/api/v1/metadata/cause-category-codes");
-        try {
-            CloseableHttpResponse response = httpClient.execute(causeGet);
-            List<Map<String, Object>> causeCategoryCodes = objectMapper.readValue(response.getEntity().getContent(), List.class);
-            juna.addCauseCategoryCodes(causeCategoryCodes);
-        } catch (Throwable t) {
-            LOGGER.error("Could not execute causeGet {}", causeGet, t);
+    private boolean createTableIfNotExists(CreateTableRequest tableRequest) throws InterruptedException {
+        ProvisionedThroughput throughput = new ProvisionedThroughput(readCapacity, writeCapacity);
+        tableRequest.setProvisionedThroughput(throughput);
+        if (tableRequest.getGlobalSecondaryIndexes() == null)
+            tableRequest.setGlobalSecondaryIndexes(new ArrayList<>());
+        for (GlobalSecondaryIndex index : tableRequest.getGlobalSecondaryIndexes()) {
+            index.setProjection(new Projection().withProjectionType(ProjectionType.ALL));
+            index.setProvisionedThroughput(throughput);
+        }
+        
+        boolean created = TableUtils.createTableIfNotExists(amazonDynamoDB, tableRequest);
+        if (created) {
+            LOGGER.info("Created table {} with {}", tableRequest.getTableName(), throughput);
+            TableUtils.waitUntilActive(amazonDynamoDB, tableRequest.getTableName());
         }
+        createIndexesIfNotExists(tableRequest);
+        return created;
     }
 
-    private void addDetailedCauseCategoryCodes(CloseableHttpClient httpClient) {
-        HttpGet detailedCauseGet = new HttpGet("https://rata.digitraffic.fi/api/v1/metadata/detailed-cause-category-codes");
-        try {
-            CloseableHttpResponse response = httpClient.execute(detailedCauseGet);
-            List<Map<String, Object>> causeCategoryCodes = objectMapper.readValue(response.getEntity().getContent(), List.class);
-            juna.addDetailedCauseCategoryCodes(causeCategoryCodes);
-        } catch (Throwable t) {
-            LOGGER.error("Could not execute detailedCauseGet {}", detailedCauseGet, t);
+    private void createIndexesIfNotExists(CreateTableRequest tableRequest) throws InterruptedException {
+        String tableName = tableRequest.getTableName();
+        TableDescription table = amazonDynamoDB.describeTable(tableName).getTable();
+        Set<String> existing = new HashSet<>();
+        if (table.getGlobalSecondaryIndexes() != null) {
+            for (GlobalSecondaryIndexDescription index : table.getGlobalSecondaryIndexes()) {
+                existing.add(index.getIndexName());
+            }
+        }
+        for (GlobalSecondaryIndex index : tableRequest.getGlobalSecondaryIndexes()) {
+            if (existing.contains(index.getIndexName()))
+                continue;
+            // Table was created before the index existed, backfill it from the current items
+            LOGGER.info("Creating index {} for existing table {}", index.getIndexName(), tableName);
+            CreateGlobalSecondaryIndexAction create = new CreateGlobalSecondaryIndexAction()
+                    .withIndexName(index.getIndexName())
+                    .withKeySchema(index.getKeySchema())
+                    .withProjection(index.getProjection())
+                    .withProvisionedThroughput(index.getProvisionedThroughput());
+            amazonDynamoDB.updateTable(new UpdateTableRequest()
+                    .withTableName(tableName)
+                    .withAttributeDefinitions(tableRequest.getAttributeDefinitions())
+                    .withGlobalSecondaryIndexUpdates(new GlobalSecondaryIndexUpdate().withCreate(create)));
+            waitUntilIndexActive(tableName, index.getIndexName());
         }
     }
 
-    private void addThirdCauseCategoryCodes(CloseableHttpClient httpClient) {
-        HttpGet thirdCauseGet = new HttpGet("https://rata.digitraffic.fi/api/v1/metadata/third-cause-category-codes");
-        try {
-            CloseableHttpResponse response = httpClient.execute(thirdCauseGet);
-            List<Map<String, Object>> causeCategoryCodes = objectMapper.readValue(response.getEntity().getContent(), List.class);
-            juna.addThirdCauseCategoryCodes(causeCategoryCodes);
-        } catch (Throwable t) {
-            LOGGER.error("Could not execute thirdCauseGet {}", thirdCauseGet, t);
+    private void waitUntilIndexActive(String tableName, String indexName) throws InterruptedException {
+        while (true) {
+            TableDescription table = amazonDynamoDB.describeTable(tableName).getTable();
+            for (GlobalSecondaryIndexDescription index : table.getGlobalSecondaryIndexes()) {
+                if (index.getIndexName().equals(indexName) && IndexStatus.ACTIVE.toString().equals(index.getIndexStatus())) {
+                    LOGGER.info("Index {} of table {} is active", indexName, tableName);
+                    return;
+                }
+            }
+            LOGGER.info("Waiting for index {} of table {} to become active", indexName, tableName);
+            Thread.sleep(5000);
         }
     }
 
-    private static class DigiTransitTrainsWebsocketClient {
-        
-        public DigiTransitTrainsWebsocketClient(UserInfoRepository repository, EmailService emailService, Juna juna) {
+    static class DigiTransitTrainsWebsocketClient {
+
+        private static final long MIN_RECONNECT_DELAY = 1000;
+        private static final long MAX_RECONNECT_DELAY = 60000;
+
+        private final WebSocketStompClient stompClient;
+        private final MyStompSessionHandler sessionHandler;
+        private final LiveTrainsMessageConverter converter;
+        private final String websocketUrl;
+        private final String liveTrainsUrl;
+
+        private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "live-trains-reconnect");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final AtomicBoolean reconnectScheduled = new AtomicBoolean();
+        private final AtomicInteger failedAttempts = new AtomicInteger();
+        private volatile boolean connectedBefore;
+
+        public DigiTransitTrainsWebsocketClient(MyStompSessionHandler sessionHandler, LiveTrainsMessageConverter converter, TrainTrackingMessageConverter trackingConverter, String websocketUrl, String liveTrainsUrl) {
+            this.sessionHandler = sessionHandler;
+            this.converter = converter;
+            this.websocketUrl = websocketUrl;
+            this.liveTrainsUrl = liveTrainsUrl;
             org.eclipse.jetty.websocket.client.WebSocketClient webSocketClient = new org.eclipse.jetty.websocket.client.WebSocketClient();
             webSocketClient.getPolicy().setMaxBinaryMessageSize(Integer.MAX_VALUE);
             webSocketClient.getPolicy().setMaxTextMessageSize(Integer.MAX_VALUE);
@@ -144,202 +277,510 @@ public class JunaNotifier implements CommandLineRunner {
             List<Transport> transports = new ArrayList<>();
             transports.add(transport);
             WebSocketClient client = new SockJsClient(transports);
-            WebSocketStompClient stompClient = new WebSocketStompClient(client);
+            stompClient = new WebSocketStompClient(client);
             stompClient.setInboundMessageSizeLimit(Integer.MAX_VALUE);
-            stompClient.setMessageConverter(
-                    new MappingJackson2MessageConverter(new MimeType("application", "json", StandardCharsets.UTF_8),
-                            new MimeType("text", "plain", StandardCharsets.UTF_8)) {
-
-                    });
+            // each converter only accepts the payload type of its own destination
+            stompClient.setMessageConverter(new CompositeMessageConverter(Arrays.asList(converter, trackingConverter)));
             // stompClient.setMessageConverter(new StringMessageConverter());
-            StompSessionHandler sessionHandler = new MyStompSessionHandler(repository, emailService, juna);
+            sessionHandler.setConnectionListeners(this::connected, this::connectionLost);
+        }
 
-            stompClient.connect("http://rata.digitraffic.fi/api/v1/websockets/", sessionHandler);
+        public void connect() {
+            LOGGER.info("Connecting to {}", websocketUrl);
+            stompClient.connect(websocketUrl, sessionHandler).addCallback(session -> {}, this::connectionLost);
+        }
+
+        private void connected() {
+            failedAttempts.set(0);
+            if (connectedBefore) {
+                scheduler.execute(this::gapFill);
+            }
+            connectedBefore = true;
+        }
+
+        private void connectionLost(Throwable cause) {
+            if (!reconnectScheduled.compareAndSet(false, true))
+                return;
+            // exponential backoff with jitter so that restarts do not reconnect in lockstep
+            long delay = Math.min(MAX_RECONNECT_DELAY, MIN_RECONNECT_DELAY << Math.min(failedAttempts.getAndIncrement(), 6));
+            delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+            LOGGER.warn("Connection to {} lost, reconnecting in {} ms", websocketUrl, delay, cause);
+            scheduler.schedule(() -> {
+                reconnectScheduled.set(false);
+                try {
+                    connect();
+                } catch (Throwable t) {
+                    connectionLost(t);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private void gapFill() {
+            long version = sessionHandler.getLastSeenVersion();
+            if (version <= 0)
+                return;
+            HttpGet liveTrainsGet = new HttpGet(liveTrainsUrl + "?version=" + version);
+            try (CloseableHttpClient httpClient = HttpClients.createDefault();
+                    CloseableHttpResponse response = httpClient.execute(liveTrainsGet)) {
+                List<Train> trains = converter.readTrains(response.getEntity().getContent());
+                LOGGER.info("Caught up {} followed trains changed since version {}", trains.size(), version);
+                sessionHandler.enqueueLiveTrains(trains);
+            } catch (Throwable t) {
+                LOGGER.error("Could not execute liveTrainsGet {}", liveTrainsGet, t);
+            }
         }
     }
 
     public static class MyStompSessionHandler extends StompSessionHandlerAdapter {
         
-        private UserInfoRepository repository;
-        private EmailService emailService;
-        private Juna juna;
+        private static final String LIVE_TRAINS = "/live-trains/";
+        private static final String TRAIN_TRACKING = "/train-tracking/";
+
+        private SubscriptionIndex subscriptionIndex;
+        private NotificationState notificationState;
+        private AlertDigest alertDigest;
+        private NotificationRenderer renderer;
+
+        // last processed version and derived delay per trainNumber, each train only touched by the worker of its partition
+        private final Map<Integer, TrainState> trainStates = new ConcurrentHashMap<>();
+        private final Counter processedTrains;
+        private final Counter skippedTrains;
+        private final DistributionSummary fanout;
+        private final Timer handleTimer;
+        private final Counter trackedEvents;
+        private final Counter skippedEvents;
+        private final Timer trackingLatency;
+
+        // Above this many followed trains we fall back to the national /live-trains/ firehose
+        private final int maxTrainSubscriptions;
+
+        // guarded by this
+        private StompSession session;
+        private final Map<Integer, StompSession.Subscription> trainSubscriptions = new HashMap<>();
+        private StompSession.Subscription firehoseSubscription;
+
+        // frames are handed over to a single processing thread so the WebSocket thread never blocks on matching or email
+        private final TrainUpdateQueue updateQueue;
+
+        // the trains of a batch are partitioned by trainNumber over these, null when processing on a single thread
+        private final int processingThreads;
+        private final ExecutorService workers;
+
+        // also follow /train-tracking/ to catch delays between live-trains updates
+        private final boolean trainTracking;
+
+        // highest version of the followed trains received, used to catch up after a reconnect
+        private final AtomicLong lastSeenVersion = new AtomicLong();
+
+        private volatile Runnable connectedListener = () -> {};
+        private volatile Consumer<Throwable> connectionLostListener = t -> {};
+
+        // pushes the processed trains to the status page, none when not running in the web app
+        private volatile TrainStatusPublisher statusPublisher;
 
         @Override
         public Type getPayloadType(StompHeaders headers) {
-            return List.class;
+            String destination = headers.getDestination();
+            return destination != null && destination.startsWith(TRAIN_TRACKING) ? TrainTrackingEvent[].class : Train[].class;
         }
         
-        public MyStompSessionHandler(UserInfoRepository repository, EmailService emailService, Juna juna) {
-            this.repository = repository;
-            this.emailService = emailService;
-            this.juna = juna;
+        public MyStompSessionHandler(SubscriptionIndex subscriptionIndex, NotificationState notificationState, AlertDigest alertDigest, NotificationRenderer renderer, MeterRegistry meterRegistry, int maxTrainSubscriptions, TrainUpdateQueue updateQueue, int processingThreads, boolean trainTracking) {
+            this.subscriptionIndex = subscriptionIndex;
+            this.notificationState = notificationState;
+            this.alertDigest = alertDigest;
+            this.renderer = renderer;
+            this.processedTrains = meterRegistry.counter("juna.livetrains.trains", "result", "processed");
+            this.skippedTrains = meterRegistry.counter("juna.livetrains.trains", "result", "skipped");
+            this.fanout = meterRegistry.summary("juna.livetrains.fanout");
+            this.handleTimer = meterRegistry.timer("juna.livetrains.handle");
+            this.trackedEvents = meterRegistry.counter("juna.traintracking.events", "result", "tracked");
+            this.skippedEvents = meterRegistry.counter("juna.traintracking.events", "result", "skipped");
+            this.trackingLatency = Timer.builder("juna.traintracking.latency").publishPercentileHistogram().register(meterRegistry);
+            this.maxTrainSubscriptions = maxTrainSubscriptions;
+            this.updateQueue = updateQueue;
+            this.processingThreads = Math.max(1, processingThreads);
+            if (this.processingThreads > 1) {
+                AtomicInteger workerCount = new AtomicInteger();
+                this.workers = Executors.newFixedThreadPool(this.processingThreads - 1, r -> {
+                    Thread thread = new Thread(r, "live-trains-worker-" + workerCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            } else {
+                this.workers = null;
+            }
+            this.trainTracking = trainTracking;
+            subscriptionIndex.addTrainsListener(this::updateSubscriptions);
+            meterRegistry.gauge("juna.livetrains.subscriptions", this, h -> h.subscriptionCount());
         }
         
         @Override
         public void afterConnected(StompSession session, StompHeaders connectedHeaders) {
-//            session.subscribe("/train-tracking/", this);
-            session.subscribe("/live-trains/", this);
+            synchronized (this) {
+                this.session = session;
+                trainSubscriptions.clear();
+                firehoseSubscription = null;
+                if (trainTracking) {
+                    // small per-event messages, the converter drops the trains nobody follows
+                    session.subscribe(TRAIN_TRACKING, this);
+                }
+            }
+            updateSubscriptions();
+            connectedListener.run();
+        }
+
+        public void setConnectionListeners(Runnable connected, Consumer<Throwable> connectionLost) {
+            this.connectedListener = connected;
+            this.connectionLostListener = connectionLost;
         }
 
-        private void handleTrainTracking(Object payload) {
-            System.out.println("train-tracking");
+        public void setStatusPublisher(TrainStatusPublisher statusPublisher) {
+            this.statusPublisher = statusPublisher;
         }
 
-        private static class UserInfoWithDifference {
-            
-            private int difference;
-            private UserInfo userInfo;
+        public long getLastSeenVersion() {
+            return lastSeenVersion.get();
+        }
 
-            public UserInfoWithDifference(int difference, UserInfo info) {
-                this.difference = difference;
-                this.userInfo = info;
+        private synchronized void updateSubscriptions() {
+            if (session == null || !session.isConnected())
+                return;
+            Set<Integer> wanted = interestingTrainIds().keySet();
+            if (maxTrainSubscriptions <= 0 || wanted.size() > maxTrainSubscriptions) {
+                if (firehoseSubscription == null) {
+                    LOGGER.info("Following {} trains, switching to {}", wanted.size(), LIVE_TRAINS);
+                    firehoseSubscription = session.subscribe(LIVE_TRAINS, this);
+                    for (StompSession.Subscription subscription : trainSubscriptions.values()) {
+                        subscription.unsubscribe();
+                    }
+                    trainSubscriptions.clear();
+                }
+                return;
+            }
+            Iterator<Map.Entry<Integer, StompSession.Subscription>> current = trainSubscriptions.entrySet().iterator();
+            while (current.hasNext()) {
+                Map.Entry<Integer, StompSession.Subscription> entry = current.next();
+                if (!wanted.contains(entry.getKey())) {
+                    LOGGER.info("Unsubscribing from {}{}", LIVE_TRAINS, entry.getKey());
+                    entry.getValue().unsubscribe();
+                    current.remove();
+                }
             }
+            for (Integer trainNumber : wanted) {
+                if (!trainSubscriptions.containsKey(trainNumber)) {
+                    LOGGER.info("Subscribing to {}{}", LIVE_TRAINS, trainNumber);
+                    trainSubscriptions.put(trainNumber, session.subscribe(LIVE_TRAINS + trainNumber, this));
+                }
+            }
+            if (firehoseSubscription != null) {
+                // per-train subscriptions are in place before the firehose is dropped
+                LOGGER.info("Following {} trains, switching from {} to per-train subscriptions", wanted.size(), LIVE_TRAINS);
+                firehoseSubscription.unsubscribe();
+                firehoseSubscription = null;
+            }
+        }
+
+        private synchronized int subscriptionCount() {
+            return firehoseSubscription != null ? 1 : trainSubscriptions.size();
+        }
+
+        private Map<Integer, List<Subscription>> interestingTrainIds() {
+            return subscriptionIndex.subscriptionsByTrain();
         }
         
-        private Map<Integer, List<UserInfoWithDifference>> interestingTrainIds() {
-            Map<Integer, List<UserInfoWithDifference>> interesting = new HashMap<>();
-            Iterable<UserInfo> info = repository.findAll();
-            if (info != null) {
-                Iterator<UserInfo> infoo = info.iterator();
-                while (infoo.hasNext()) {
-                    UserInfo i = infoo.next();
-                    if (i.getApprovalPending() == null || i.getApprovalPending().isEmpty()) {
-                        for (String trid : i.getTrainIds()) {
-                            try {
-                                int defaultDifference = 5;
-                                int trainId;
-                                String[] parts = trid.split(":");
-                                if (parts.length == 1) {
-                                    // no difference specified
-                                    trainId = Integer.parseInt(parts[0]);
-                                } else {
-                                    trainId = Integer.parseInt(parts[0]);
-                                    defaultDifference = Integer.parseInt(parts[1]);
-                                }
-                                List<UserInfoWithDifference> infos = interesting.get(trainId);
-                                if (infos == null) {
-                                    infos = new ArrayList<>();
-                                    interesting.put(trainId, infos);
-                                }
-                                infos.add(new UserInfoWithDifference(defaultDifference, i));
-                            } catch (Exception e) {
-                                LOGGER.error("Could not add ", e);
-                            }
+        /**
+         * What was last derived for a train: the live-trains update it came from
+         * and the position along its timetable rows, which train-tracking events
+         * advance between updates without copying the rows.
+         */
+        private static class TrainState {
+
+            private final Train train;
+            private final long version;
+            private final String departureDate;
+            private final List<Subscription> subscriptions;
+            private final int actualDifference;
+            private final boolean cancelled;
+            // index of the last timetable row the train has passed, -1 before the first one
+            private final int position;
+
+            public TrainState(Train train, List<Subscription> subscriptions, int actualDifference) {
+                this(train, subscriptions, actualDifference, train.getTimeTableRows().indexOf(train.getLatestActualRow()));
+            }
+
+            private TrainState(Train train, List<Subscription> subscriptions, int actualDifference, int position) {
+                this.train = train;
+                this.version = train.getVersion();
+                this.departureDate = train.getDepartureDate();
+                this.subscriptions = subscriptions;
+                this.actualDifference = actualDifference;
+                this.cancelled = train.isCancelled();
+                this.position = position;
+            }
+
+            private TrainState tracked(int position, int actualDifference) {
+                return new TrainState(train, subscriptions, actualDifference, position);
+            }
+
+            private boolean isUnchanged(Train train, List<Subscription> currentSubscriptions) {
+                // SubscriptionIndex replaces the list whenever the train's subscribers change
+                return train.getVersion() <= version && currentSubscriptions == subscriptions
+                        && (departureDate == null ? train.getDepartureDate() == null : departureDate.equals(train.getDepartureDate()));
+            }
+        }
+
+        public void startProcessing() {
+            Thread processor = new Thread(this::processLiveTrains, "live-trains-processor");
+            processor.setDaemon(true);
+            processor.start();
+        }
+
+        private void processLiveTrains() {
+            while (true) {
+                try {
+                    TrainUpdateQueue.Batch batch = updateQueue.take(256);
+                    handleTimer.record(() -> {
+                        if (!batch.getTrains().isEmpty()) {
+                            handleLiveTrains(batch.getTrains());
                         }
-                    }
+                        handleTrackingEvents(batch.getEvents());
+                    });
+                } catch (InterruptedException e) {
+                    LOGGER.info("Live trains processing interrupted");
+                    return;
+                } catch (Throwable t) {
+                    LOGGER.error("Could not process live trains", t);
                 }
             }
-            return interesting;
         }
-        
-        private void handleLiveTrains(Object payload) {
-            Map<Integer, List<UserInfoWithDifference>> interesting = interestingTrainIds();
-            Set<Integer> trainIds = interesting.keySet();
-            List<Map<String, Object>> trains = (List<Map<String, Object>>) payload;
-            trains = trains.stream().filter(tr -> trainIds.contains(tr.get("trainNumber"))).collect(Collectors.toList());
-            for (Map<String, Object> train : trains) {
-                boolean cancelled = (boolean) train.get("cancelled");
-                int trainNumber = (int) train.get("trainNumber");
-                if (cancelled) {
-                    List<UserInfoWithDifference> differencesForTrain = interesting.get(trainNumber);
-                    for (UserInfoWithDifference ifwd : differencesForTrain) {
-                        LOGGER.info("Reporting cancelled train {} for user {}", trainNumber, ifwd.userInfo.getEmail());
-                        handleCancelledTrain(train, ifwd);
-                    }
-                } else {
-                    List<Map<String, Object>> ttrs = (List<Map<String, Object>>) train.get("timeTableRows");
-                    List<Map<String, Object>> ttrr = getLatestTimeTableRow(ttrs);
-                    
-                    Map<String, Object> actual = ttrr.get(0);
-                    Map<String, Object> estimate = ttrr.get(1);
-                    int actualDifference = 0;
-                    int estimateDifference = 0;
-                    if (actual != null) {
-                        actualDifference = (int) actual.get("differenceInMinutes");
-                    }
-                    if (estimate != null) {
-                        estimateDifference = (int) estimate.get("differenceInMinutes");
-                    }
-                    List<UserInfoWithDifference> differencesForTrain = interesting.get(trainNumber);
-                    for (UserInfoWithDifference ifwd : differencesForTrain) {
-                        int allowedDifference = ifwd.difference;
-                        if (allowedDifference < actualDifference) {
-                            // Ok, report late train
-                            LOGGER.info("Reporting late train {} for user {} with actual difference {} and estimate difference {}", trainNumber, ifwd.userInfo.getEmail(), actualDifference, estimateDifference);
-                            handleLateTrain(train, ifwd, actual, actualDifference, estimate, estimateDifference);
+
+        private void enqueueLiveTrains(List<Train> trains) {
+            // LiveTrainsMessageConverter has already dropped the trains nobody follows
+            for (Train train : trains) {
+                lastSeenVersion.accumulateAndGet(train.getVersion(), Math::max);
+                if (!updateQueue.offer(train)) {
+                    LOGGER.warn("Live trains queue is full, dropping update of train {}", train.getTrainNumber());
+                }
+            }
+        }
+
+        private void enqueueTrackingEvents(TrainTrackingEvent[] events) {
+            for (TrainTrackingEvent event : events) {
+                if (!updateQueue.offer(event)) {
+                    LOGGER.warn("Live trains queue is full, dropping train-tracking event of train {}", event.getTrainNumber());
+                }
+            }
+        }
+
+        void handleLiveTrains(List<Train> trains) {
+            notificationState.purge();
+            Map<Integer, List<Subscription>> interesting = interestingTrainIds();
+            trainStates.keySet().retainAll(interesting.keySet());
+            partitioned(trains, Train::getTrainNumber, train -> handleTrain(train, interesting));
+        }
+
+        void handleTrackingEvents(List<TrainTrackingEvent> events) {
+            if (events.isEmpty())
+                return;
+            Map<Integer, List<Subscription>> interesting = interestingTrainIds();
+            partitioned(events, TrainTrackingEvent::getTrainNumber, event -> handleTrackingEvent(event, interesting));
+        }
+
+        private <T> void partitioned(List<T> items, ToIntFunction<T> trainNumber, Consumer<T> handler) {
+            if (workers == null || items.size() < 2) {
+                items.forEach(handler);
+                return;
+            }
+            // all items of a train land in the same partition, in the order they arrived
+            List<List<T>> partitions = new ArrayList<>(processingThreads);
+            for (int i = 0; i < processingThreads; i++) {
+                partitions.add(new ArrayList<>(items.size() / processingThreads + 1));
+            }
+            for (T item : items) {
+                partitions.get(Math.floorMod(trainNumber.applyAsInt(item), processingThreads)).add(item);
+            }
+            List<Future<?>> running = new ArrayList<>(processingThreads - 1);
+            for (List<T> partition : partitions.subList(1, processingThreads)) {
+                if (!partition.isEmpty()) {
+                    running.add(workers.submit(() -> partition.forEach(handler)));
+                }
+            }
+            partitions.get(0).forEach(handler);
+            // the next batch may carry the same trains, so it waits for this one to finish
+            for (Future<?> future : running) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    LOGGER.error("Could not process live trains", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        private void handleTrain(Train train, Map<Integer, List<Subscription>> interesting) {
+            int trainNumber = train.getTrainNumber();
+            String departureDate = train.getDepartureDate();
+            List<Subscription> differencesForTrain = interesting.get(trainNumber);
+            if (differencesForTrain == null) {
+                // unsubscribed while handling the frame
+                return;
+            }
+            TrainState previous = trainStates.get(trainNumber);
+            if (previous != null && previous.isUnchanged(train, differencesForTrain)) {
+                skippedTrains.increment();
+                return;
+            }
+            processedTrains.increment();
+            fanout.record(differencesForTrain.size());
+            if (train.isCancelled()) {
+                trainStates.put(trainNumber, new TrainState(train, differencesForTrain, 0));
+                publishStatus(train, train.getLatestActualRow(), 0, train.getUpdatedAt());
+                RenderedAlert cancelledAlert = null;
+                for (Subscription subscription : differencesForTrain) {
+                    String email = subscription.getUserInfo().getEmail();
+                    if (notificationState.cancelled(email, trainNumber, departureDate) == Notification.CANCELLED) {
+                        LOGGER.info("Reporting cancelled train {} for user {}", trainNumber, email);
+                        if (cancelledAlert == null) {
+                            cancelledAlert = renderer.cancelled(train);
                         }
+                        sendAlert(cancelledAlert, subscription, train.getUpdatedAt());
                     }
                 }
+            } else {
+                TimeTableRow actual = train.getLatestActualRow();
+                int actualDifference = 0;
+                if (actual != null) {
+                    actualDifference = actual.getDifferenceInMinutes();
+                }
+                trainStates.put(trainNumber, new TrainState(train, differencesForTrain, actualDifference));
+                publishStatus(train, actual, actualDifference, train.getUpdatedAt());
+                notifyDifference(train, differencesForTrain, actual, actualDifference, train.getUpdatedAt());
             }
         }
-        
-        private static List<Map<String, Object>> getLatestTimeTableRow(List<Map<String, Object>> timeTableRows) {
-            Map<String, Object> latestTimeTableRow = null;
-            Map<String, Object> nextEstimatedTimeTableRow = null;
-            for (Map<String, Object> ttr : timeTableRows) {
-                Object actualTime = ttr.get("actualTime");
-                Object liveEstimateTime = ttr.get("liveEstimateTime");
-                if (actualTime != null) {
-                    if (latestTimeTableRow == null) {
-                        latestTimeTableRow = ttr;
-                    } else {
-                        DateTime dtActualTiem = DateTime.parse((String)actualTime);
-                        DateTime currentActualTime = DateTime.parse((String) latestTimeTableRow.get("actualTime"));
-                        if (dtActualTiem.isAfter(currentActualTime)) {
-                            latestTimeTableRow = ttr;
+
+        private void handleTrackingEvent(TrainTrackingEvent event, Map<Integer, List<Subscription>> interesting) {
+            int trainNumber = event.getTrainNumber();
+            TrainState state = trainStates.get(trainNumber);
+            List<Subscription> differencesForTrain = interesting.get(trainNumber);
+            // positions are tracked against the timetable of the latest live-trains update only
+            if (state == null || differencesForTrain == null || state.cancelled
+                    || !Objects.equals(state.departureDate, event.getDepartureDate())) {
+                skippedEvents.increment();
+                return;
+            }
+            // an occupied station section is compared with the arrival and a released one with the departure
+            String type = event.isOccupy() ? "ARRIVAL" : "DEPARTURE";
+            List<TimeTableRow> rows = state.train.getTimeTableRows();
+            TimeTableRow row = null;
+            int position = state.position + 1;
+            for (; position < rows.size(); position++) {
+                TimeTableRow candidate = rows.get(position);
+                if (event.getStation().equals(candidate.getStationShortCode()) && type.equals(candidate.getType())) {
+                    row = candidate;
+                    break;
+                }
+            }
+            if (row == null || row.getScheduledTime() == TimeTableRow.NO_TIME) {
+                // already passed or not a stop of this train
+                skippedEvents.increment();
+                return;
+            }
+            trackedEvents.increment();
+            int actualDifference = (int) Math.round((event.getTimestamp() - row.getScheduledTime()) / 60000.0);
+            trainStates.put(trainNumber, state.tracked(position, actualDifference));
+            publishStatus(state.train, row, actualDifference, event.getTimestamp());
+            if (actualDifference == state.actualDifference)
+                return;
+            if (notifyDifference(state.train, differencesForTrain, row, actualDifference, event.getTimestamp()) > 0) {
+                trackingLatency.record(System.currentTimeMillis() - event.getTimestamp(), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void publishStatus(Train train, TimeTableRow row, int actualDifference, long updatedAt) {
+            TrainStatusPublisher publisher = statusPublisher;
+            if (publisher != null) {
+                publisher.publish(train, row, actualDifference, updatedAt);
+            }
+        }
+
+        /**
+         * Alerts the followers for whom the difference crosses into a new band
+         * or recovers, returning the number of alerts sent. Followers who board
+         * at a station are compared with the estimate at their station instead.
+         */
+        private int notifyDifference(Train train, List<Subscription> differencesForTrain, TimeTableRow actual, int actualDifference, long eventTime) {
+            int trainNumber = train.getTrainNumber();
+            String departureDate = train.getDepartureDate();
+            TimeTableRow estimate = train.getNextEstimateRow();
+            int estimateDifference = estimate != null ? estimate.getDifferenceInMinutes() : 0;
+            // rendered on first use and shared by all followers of this update, or of the same station
+            RenderedAlert lateAlert = null;
+            RenderedAlert recoveredAlert = null;
+            Map<String, RenderedAlert> stationLateAlerts = null;
+            Map<String, RenderedAlert> stationRecoveredAlerts = null;
+            int alerts = 0;
+            for (Subscription subscription : differencesForTrain) {
+                String email = subscription.getUserInfo().getEmail();
+                int allowedDifference = subscription.getDifference();
+                String station = subscription.getStation();
+                TimeTableRow stationRow = station != null ? train.getStationRow(station) : null;
+                if (stationRow != null) {
+                    int stationDifference = stationRow.getEstimatedDifferenceInMinutes(actualDifference);
+                    Notification notification = notificationState.difference(email, trainNumber, subscription.getTrainId(), departureDate, allowedDifference, stationDifference);
+                    if (notification == Notification.LATE) {
+                        LOGGER.info("Reporting late train {} for user {} with difference {} at {}", trainNumber, email, stationDifference, station);
+                        if (stationLateAlerts == null) {
+                            stationLateAlerts = new HashMap<>();
+                        }
+                        Cause cause = stationRow.getCause() != null || actual == null ? stationRow.getCause() : actual.getCause();
+                        RenderedAlert alert = stationLateAlerts.computeIfAbsent(station, s -> renderer.late(train, s, cause, stationDifference));
+                        sendAlert(alert, subscription, eventTime);
+                        alerts++;
+                    } else if (notification == Notification.RECOVERED) {
+                        LOGGER.info("Reporting recovered train {} for user {} with difference {} at {}", trainNumber, email, stationDifference, station);
+                        if (stationRecoveredAlerts == null) {
+                            stationRecoveredAlerts = new HashMap<>();
                         }
+                        RenderedAlert alert = stationRecoveredAlerts.computeIfAbsent(station, s -> renderer.recovered(train, stationDifference));
+                        sendAlert(alert, subscription, eventTime);
+                        alerts++;
                     }
+                    continue;
                 }
-                if (liveEstimateTime != null) {
-                    if (nextEstimatedTimeTableRow == null) {
-                        nextEstimatedTimeTableRow = ttr;
-                    } else {
-                        DateTime dtLiveEstimate = DateTime.parse((String)liveEstimateTime);
-                        DateTime nextEstimateTime= DateTime.parse((String) nextEstimatedTimeTableRow.get("liveEstimateTime"));
-                        if (nextEstimateTime.isAfter(dtLiveEstimate)) {
-                            nextEstimatedTimeTableRow = ttr;
-                        }
+                Notification notification = notificationState.difference(email, trainNumber, subscription.getTrainId(), departureDate, allowedDifference, actualDifference);
+                if (notification == Notification.LATE) {
+                    // Ok, report late train
+                    LOGGER.info("Reporting late train {} for user {} with actual difference {} and estimate difference {}", trainNumber, email, actualDifference, estimateDifference);
+                    if (lateAlert == null) {
+                        lateAlert = renderer.late(train, actual, actualDifference);
+                    }
+                    sendAlert(lateAlert, subscription, eventTime);
+                    alerts++;
+                } else if (notification == Notification.RECOVERED) {
+                    LOGGER.info("Reporting recovered train {} for user {} with actual difference {}", trainNumber, email, actualDifference);
+                    if (recoveredAlert == null) {
+                        recoveredAlert = renderer.recovered(train, actualDifference);
                     }
+                    sendAlert(recoveredAlert, subscription, eventTime);
+                    alerts++;
                 }
             }
-            List<Map<String, Object>> ttrPair = new ArrayList<>();
-            ttrPair.add(latestTimeTableRow);
-            ttrPair.add(nextEstimatedTimeTableRow);
-            return ttrPair;
-        }
-
-        private void handleCancelledTrain(Map<String, Object> train, UserInfoWithDifference ifwd) {
-            UserInfo info = ifwd.userInfo;
-            String lineId = (String) train.get("commuterLineID");
-            StringBuilder subject = new StringBuilder();
-            subject.append("Juna ").append(lineId).append(" (").append(train.get("trainNumber")).append(") on peruutettu!");
-            StringBuilder text = new StringBuilder();
-            text.append("Juna ").append(lineId).append(" (").append(train.get("trainNumber")).append(") on peruutettu!");
-            text.append("\n\nLopeta tmn junan seuraaminen klikkaamalla: ").append(juna.getServername()).append("/trains/remove?email=").append(info.getEmail()).append("&trainId=").append(lineId).append(":").append(ifwd.difference);
-            emailService.sendSimpleMessage(info.getEmail(), subject.toString(), text.toString());
-        }
-
-        private void handleLateTrain(Map<String, Object> train, UserInfoWithDifference ifwd, Map<String, Object> actual, int actualDifference, Map<String, Object> estimate, int estimateDifference) {
-            UserInfo info = ifwd.userInfo;
-            String lineId = (String) train.get("commuterLineID");
-            StringBuilder subject = new StringBuilder();
-            String stationName = juna.getStationNameByShortCode((String) actual.get("stationShortCode"));
-            subject.append("Juna ").append(lineId).append(" (").append(train.get("trainNumber")).append(") on ").append(actualDifference).append(" minuuttia myhss @ ").append(stationName);
-            List<String> causes = (List<String>) actual.get("causes");
-            StringBuilder text = new StringBuilder();
-            text.append("Juna ").append(lineId).append(" (").append(train.get("trainNumber")).append(") on ").append(actualDifference).append(" minuuttia myhss joka ylitt annetun raja-arvon ").append(ifwd.difference).append(". Myhstymisen syy: \n\n").append(juna.resolveCauseCodesToHumanMessage(causes));
-            text.append("\n\nLopeta tmn junan seuraaminen klikkaamalla: ").append(juna.getServername()).append("/trains/remove?email=").append(info.getEmail()).append("&trainId=").append(lineId).append(":").append(ifwd.difference);
-            emailService.sendSimpleMessage(info.getEmail(), subject.toString(), text.toString());
+            return alerts;
         }
         
+        private void sendAlert(RenderedAlert alert, Subscription subscription, long eventTime) {
+            alertDigest.sendAlert(subscription.getUserInfo().getEmail(), alert.getSubject(subscription), alert.getText(subscription), eventTime);
+        }
 
         @Override
         public void handleFrame(StompHeaders headers, Object payload) {
             try {
-                if (headers.getDestination().equals("/live-trains/")) {
-                    handleLiveTrains(payload);
-                } else if (headers.getDestination().equals("/train-tracking/")) {
-                    handleTrainTracking(payload);
+                if (headers.getDestination().startsWith(LIVE_TRAINS)) {
+                    enqueueLiveTrains(Arrays.asList((Train[]) payload));
+                } else if (headers.getDestination().startsWith(TRAIN_TRACKING)) {
+                    enqueueTrackingEvents((TrainTrackingEvent[]) payload);
                 }
             } catch (Throwable t) {
                 LOGGER.error("Could not handle frame with headers {}", headers, t);
@@ -354,6 +795,9 @@ public class JunaNotifier implements CommandLineRunner {
         @Override
         public void handleTransportError(StompSession session, Throwable exception) {
             LOGGER.error("Handling transport error for session {}", session, exception);
+            if (!session.isConnected()) {
+                connectionLostListener.accept(exception);
+            }
         }
     }
 }
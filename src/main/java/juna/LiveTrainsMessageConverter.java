@@ -0,0 +1,290 @@
+package juna;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.AbstractMessageConverter;
+import org.springframework.messaging.converter.MessageConversionException;
+import org.springframework.util.MimeType;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Decodes /live-trains/ frames with a streaming parser. The trainNumber of each
+ * train is read first and trains nobody follows are skipped token by token, so
+ * only the subscribed trains are ever materialised, straight into {@link Train}
+ * objects with pre-parsed timestamps. Frames are converted to a Train[].
+ */
+public class LiveTrainsMessageConverter extends AbstractMessageConverter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LiveTrainsMessageConverter.class);
+
+    private static final DateTimeFormatter TIME_PARSER = ISODateTimeFormat.dateTimeParser();
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final SubscriptionIndex subscriptionIndex;
+
+    private final DistributionSummary frameBytes;
+    private final DistributionSummary frameTrains;
+    private final DistributionSummary frameMatched;
+    private final Timer decodeTimer;
+
+    private static class Counts {
+
+        private int trains;
+        private int matched;
+    }
+
+    public LiveTrainsMessageConverter(SubscriptionIndex subscriptionIndex, MeterRegistry meterRegistry) {
+        super(Arrays.asList(new MimeType("application", "json", StandardCharsets.UTF_8),
+                new MimeType("text", "plain", StandardCharsets.UTF_8)));
+        this.subscriptionIndex = subscriptionIndex;
+        this.frameBytes = DistributionSummary.builder("juna.livetrains.frame.size").baseUnit("bytes").register(meterRegistry);
+        this.frameTrains = meterRegistry.summary("juna.livetrains.frame.trains");
+        this.frameMatched = meterRegistry.summary("juna.livetrains.frame.matched");
+        this.decodeTimer = Timer.builder("juna.livetrains.frame.decode").publishPercentileHistogram().register(meterRegistry);
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return Train[].class.equals(clazz);
+    }
+
+    @Override
+    protected boolean canConvertTo(Object payload, MessageHeaders headers) {
+        return false;
+    }
+
+    @Override
+    protected Object convertFromInternal(Message<?> message, Class<?> targetClass, Object conversionHint) {
+        Object payload = message.getPayload();
+        long start = System.nanoTime();
+        Counts counts = new Counts();
+        try (JsonParser parser = createParser(payload)) {
+            List<Train> trains = readTrains(parser, counts);
+            frameBytes.record(payload instanceof byte[] ? ((byte[]) payload).length : payload.toString().length());
+            frameTrains.record(counts.trains);
+            frameMatched.record(counts.matched);
+            return trains.toArray(new Train[trains.size()]);
+        } catch (IOException e) {
+            throw new MessageConversionException(message, "Could not read live-trains frame", e);
+        } finally {
+            decodeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Reads trains from a REST response, e.g. live-trains?version=, with the same
+     * filtering as frames.
+     */
+    public List<Train> readTrains(InputStream in) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(in)) {
+            return readTrains(parser, new Counts());
+        }
+    }
+
+    private JsonParser createParser(Object payload) throws IOException {
+        if (payload instanceof byte[])
+            return jsonFactory.createParser((byte[]) payload);
+        return jsonFactory.createParser(payload.toString());
+    }
+
+    private List<Train> readTrains(JsonParser parser, Counts counts) throws IOException {
+        List<Train> trains = new ArrayList<>();
+        long receivedAt = System.currentTimeMillis();
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.START_ARRAY) {
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                counts.trains++;
+                Train train = readTrain(parser, receivedAt);
+                if (train != null) {
+                    trains.add(train);
+                }
+            }
+        } else if (token == JsonToken.START_OBJECT) {
+            // per-train destinations deliver a single train
+            counts.trains++;
+            Train train = readTrain(parser, receivedAt);
+            if (train != null) {
+                trains.add(train);
+            }
+        } else if (token != null) {
+            LOGGER.warn("Unexpected token {} at the start of live-trains frame", token);
+        }
+        counts.matched = trains.size();
+        return trains;
+    }
+
+    private Train readTrain(JsonParser parser, long receivedAt) throws IOException {
+        // Digitraffic sends trainNumber as the first field, so unsubscribed trains are skipped almost entirely
+        int trainNumber = -1;
+        String departureDate = null;
+        String commuterLineID = null;
+        boolean cancelled = false;
+        long version = 0;
+        List<TimeTableRow> timeTableRows = Collections.emptyList();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            switch (field) {
+            case "trainNumber":
+                trainNumber = parser.getIntValue();
+                if (!subscriptionIndex.isSubscribed(trainNumber)) {
+                    skipRemainingFields(parser);
+                    return null;
+                }
+                break;
+            case "departureDate":
+                departureDate = text(parser, value);
+                break;
+            case "commuterLineID":
+                commuterLineID = internedText(parser, value);
+                break;
+            case "cancelled":
+                cancelled = value == JsonToken.VALUE_TRUE;
+                break;
+            case "version":
+                version = parser.getLongValue();
+                break;
+            case "timeTableRows":
+                timeTableRows = readTimeTableRows(parser, value);
+                break;
+            default:
+                parser.skipChildren();
+            }
+        }
+        if (trainNumber < 0)
+            return null;
+        return new Train(trainNumber, departureDate, commuterLineID, cancelled, version, timeTableRows, receivedAt);
+    }
+
+    private List<TimeTableRow> readTimeTableRows(JsonParser parser, JsonToken value) throws IOException {
+        if (value != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return Collections.emptyList();
+        }
+        List<TimeTableRow> rows = new ArrayList<>();
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            rows.add(readTimeTableRow(parser));
+        }
+        return rows;
+    }
+
+    private TimeTableRow readTimeTableRow(JsonParser parser) throws IOException {
+        String stationShortCode = null;
+        String type = null;
+        long scheduledTime = TimeTableRow.NO_TIME;
+        long actualTime = TimeTableRow.NO_TIME;
+        long liveEstimateTime = TimeTableRow.NO_TIME;
+        int differenceInMinutes = 0;
+        boolean cancelled = false;
+        List<Cause> causes = Collections.emptyList();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            switch (field) {
+            case "stationShortCode":
+                stationShortCode = internedText(parser, value);
+                break;
+            case "type":
+                type = internedText(parser, value);
+                break;
+            case "scheduledTime":
+                scheduledTime = time(parser, value);
+                break;
+            case "actualTime":
+                actualTime = time(parser, value);
+                break;
+            case "liveEstimateTime":
+                liveEstimateTime = time(parser, value);
+                break;
+            case "differenceInMinutes":
+                differenceInMinutes = value == JsonToken.VALUE_NULL ? 0 : parser.getIntValue();
+                break;
+            case "cancelled":
+                cancelled = value == JsonToken.VALUE_TRUE;
+                break;
+            case "causes":
+                causes = readCauses(parser, value);
+                break;
+            default:
+                parser.skipChildren();
+            }
+        }
+        return new TimeTableRow(stationShortCode, type, scheduledTime, actualTime, liveEstimateTime, differenceInMinutes, cancelled, causes);
+    }
+
+    private List<Cause> readCauses(JsonParser parser, JsonToken value) throws IOException {
+        if (value != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return Collections.emptyList();
+        }
+        List<Cause> causes = null;
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            String categoryCode = null;
+            String detailedCategoryCode = null;
+            String thirdCategoryCode = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken codeValue = parser.nextToken();
+                switch (field) {
+                case "categoryCode":
+                    categoryCode = internedText(parser, codeValue);
+                    break;
+                case "detailedCategoryCode":
+                    detailedCategoryCode = internedText(parser, codeValue);
+                    break;
+                case "thirdCategoryCode":
+                    thirdCategoryCode = internedText(parser, codeValue);
+                    break;
+                default:
+                    parser.skipChildren();
+                }
+            }
+            if (causes == null) {
+                causes = new ArrayList<>(1);
+            }
+            causes.add(new Cause(categoryCode, detailedCategoryCode, thirdCategoryCode));
+        }
+        return causes == null ? Collections.<Cause>emptyList() : Collections.unmodifiableList(causes);
+    }
+
+    private static String text(JsonParser parser, JsonToken value) throws IOException {
+        return value == JsonToken.VALUE_NULL ? null : parser.getText();
+    }
+
+    private static String internedText(JsonParser parser, JsonToken value) throws IOException {
+        return value == JsonToken.VALUE_NULL ? null : parser.getText().intern();
+    }
+
+    private static long time(JsonParser parser, JsonToken value) throws IOException {
+        if (value == JsonToken.VALUE_NULL)
+            return TimeTableRow.NO_TIME;
+        return TIME_PARSER.parseMillis(parser.getText());
+    }
+
+    private static void skipRemainingFields(JsonParser parser) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            parser.nextToken();
+            parser.skipChildren();
+        }
+    }
+}
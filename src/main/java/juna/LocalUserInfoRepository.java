@@ -0,0 +1,409 @@
+package juna;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * {@link UserInfoRepository} kept in memory and persisted to a local
+ * append-only log, used with juna.storage=local instead of DynamoDB.
+ *
+ * Every change is appended as a length-prefixed, checksummed record before the
+ * in-memory indexes are updated, and the log is replayed on startup. A torn
+ * record at the end of the log is cut off, but a bad record with other records
+ * after it fails startup instead of discarding them. Once most of the log
+ * consists of overwritten records it is compacted by writing the live users
+ * into a new file which replaces the old one.
+ */
+@Component
+@ConditionalOnProperty(name = "juna.storage", havingValue = "local")
+public class LocalUserInfoRepository implements UserInfoRepository {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LocalUserInfoRepository.class);
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final int MAX_RECORD = 1 << 20;
+
+    @Value("${juna.storage.file:userinfo.log}")
+    private String file;
+
+    @Value("${juna.storage.sync:true}")
+    private boolean sync;
+
+    @Value("${juna.storage.compactionMinRecords:1000}")
+    private int compactionMinRecords;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    // written under the lock of this repository and read without locking, so a
+    // reader may find a user by id before it can be found by email
+    private final Map<String, UserInfo> byId = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> idsByEmail = new ConcurrentHashMap<>();
+
+    private Path path;
+    private FileChannel log;
+    private int records;
+
+    @PostConstruct
+    public synchronized void open() throws IOException {
+        path = Paths.get(file).toAbsolutePath();
+        long start = System.currentTimeMillis();
+        long valid = Files.exists(path) ? replay() : 0;
+        log = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (log.size() > valid) {
+            LOGGER.warn("Discarding {} bytes of incomplete records at the end of {}", log.size() - valid, path);
+            log.truncate(valid);
+        }
+        log.position(valid);
+        LOGGER.info("Loaded {} users from {} records of {} in {} ms", byId.size(), records, path, System.currentTimeMillis() - start);
+        compactIfNeeded();
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    /**
+     * Applies the records of the log, returning the length of its valid part.
+     * A bad record is only accepted as the torn end of the log if it is the
+     * last one or followed by nothing but zeros.
+     */
+    private long replay() throws IOException {
+        long size = Files.size(path);
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            while (size - valid >= 8) {
+                int length = in.readInt();
+                long checksum = in.readInt() & 0xffffffffL;
+                if (length < 1 || length > MAX_RECORD) {
+                    if (isZeros(in))
+                        break;
+                    throw corrupt(valid, size);
+                }
+                long end = valid + 8 + length;
+                if (end > size)
+                    break;
+                byte[] record = new byte[length];
+                in.readFully(record);
+                if (checksum(record, 0, length) != checksum) {
+                    if (end == size || isZeros(in))
+                        break;
+                    throw corrupt(valid, size);
+                }
+                apply(record, 0, length);
+                records++;
+                valid = end;
+            }
+        }
+        return valid;
+    }
+
+    private static boolean isZeros(InputStream in) throws IOException {
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b != 0)
+                return false;
+        }
+        return true;
+    }
+
+    private IOException corrupt(long offset, long size) {
+        return new IOException("Corrupt record at byte " + offset + " of the " + size + " bytes of " + path
+                + ", restore the log or truncate it to " + offset + " bytes to drop the records from there on");
+    }
+
+    private void apply(byte[] record, int offset, int length) throws IOException {
+        if (record[offset] == PUT) {
+            index(objectMapper.readValue(record, offset + 1, length - 1, UserInfo.class));
+        } else if (record[offset] == DELETE) {
+            unindex(new String(record, offset + 1, length - 1, StandardCharsets.UTF_8));
+        } else {
+            throw new IOException("Unknown record type " + record[offset] + " in " + path);
+        }
+    }
+
+    private void index(UserInfo info) {
+        UserInfo previous = byId.put(info.getId(), info);
+        if (previous != null && previous.getEmail() != null && !previous.getEmail().equals(info.getEmail())) {
+            removeEmail(previous.getEmail(), previous.getId());
+        }
+        if (info.getEmail() != null) {
+            idsByEmail.computeIfAbsent(info.getEmail(), email -> ConcurrentHashMap.newKeySet()).add(info.getId());
+        }
+    }
+
+    private void unindex(String id) {
+        UserInfo previous = byId.remove(id);
+        if (previous != null && previous.getEmail() != null) {
+            removeEmail(previous.getEmail(), id);
+        }
+    }
+
+    private void removeEmail(String email, String id) {
+        idsByEmail.computeIfPresent(email, (e, ids) -> {
+            ids.remove(id);
+            return ids.isEmpty() ? null : ids;
+        });
+    }
+
+    private byte[] encode(byte type, byte[] body) {
+        ByteBuffer record = ByteBuffer.allocate(9 + body.length);
+        record.putInt(1 + body.length);
+        record.putInt(0);
+        record.put(type);
+        record.put(body);
+        record.putInt(4, (int) checksum(record.array(), 8, 1 + body.length));
+        return record.array();
+    }
+
+    private static long checksum(byte[] buffer, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer, offset, length);
+        return crc.getValue();
+    }
+
+    private static void write(FileChannel channel, List<byte[]> encoded) throws IOException {
+        int size = 0;
+        for (byte[] record : encoded) {
+            size += record.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] record : encoded) {
+            buffer.put(record);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void append(List<byte[]> encoded) throws IOException {
+        long position = log.position();
+        try {
+            write(log, encoded);
+            if (sync) {
+                log.force(false);
+            }
+        } catch (IOException e) {
+            // later records must not end up behind a torn one
+            log.truncate(position);
+            throw e;
+        }
+        records += encoded.size();
+    }
+
+    private synchronized void write(List<UserInfo> puts, List<String> deletes) {
+        try {
+            List<byte[]> encoded = new ArrayList<>(puts.size() + deletes.size());
+            for (UserInfo info : puts) {
+                encoded.add(encode(PUT, objectMapper.writeValueAsBytes(info)));
+            }
+            for (String id : deletes) {
+                encoded.add(encode(DELETE, id.getBytes(StandardCharsets.UTF_8)));
+            }
+            append(encoded);
+            for (UserInfo info : puts) {
+                index(info);
+            }
+            for (String id : deletes) {
+                unindex(id);
+            }
+            compactIfNeeded();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write to " + path, e);
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (records > compactionMinRecords && records > 2 * byId.size()) {
+            try {
+                compact();
+            } catch (IOException e) {
+                // the change is already in the log, which stays in use
+                LOGGER.warn("Could not compact {}", path, e);
+            }
+        }
+    }
+
+    /**
+     * Writes the live users into a new file and only switches to it once it
+     * has been renamed over the log, so that a failure leaves the log as it
+     * was.
+     */
+    private void compact() throws IOException {
+        long start = System.currentTimeMillis();
+        int before = records;
+        Path temp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        FileChannel compacted = null;
+        try {
+            compacted = FileChannel.open(temp, StandardOpenOption.WRITE);
+            List<byte[]> encoded = new ArrayList<>(byId.size());
+            for (UserInfo info : byId.values()) {
+                encoded.add(encode(PUT, objectMapper.writeValueAsBytes(info)));
+            }
+            write(compacted, encoded);
+            compacted.force(true);
+            // renamed over the old log so a crash leaves either the old or the compacted log
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory(path.getParent());
+            // the open channel now writes to the end of the compacted log
+            FileChannel old = log;
+            log = compacted;
+            records = encoded.size();
+            compacted = null;
+            old.close();
+        } finally {
+            if (compacted != null) {
+                compacted.close();
+                Files.deleteIfExists(temp);
+            }
+        }
+        LOGGER.info("Compacted {} from {} to {} records in {} ms", path, before, records, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Makes a rename in the directory durable. Directories cannot be opened
+     * on every platform, there the rename is left to the file system.
+     */
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            LOGGER.debug("Could not sync directory {}", directory, e);
+        }
+    }
+
+    private static void assignId(UserInfo entity) {
+        if (entity.getId() == null || entity.getId().isEmpty()) {
+            entity.setId(UUID.randomUUID().toString());
+        }
+    }
+
+    @Override
+    public <S extends UserInfo> S save(S entity) {
+        assignId(entity);
+        write(Collections.singletonList(new UserInfo(entity)), Collections.emptyList());
+        return entity;
+    }
+
+    @Override
+    public <S extends UserInfo> Iterable<S> save(Iterable<S> entities) {
+        List<S> saved = new ArrayList<>();
+        List<UserInfo> copies = new ArrayList<>();
+        for (S entity : entities) {
+            assignId(entity);
+            saved.add(entity);
+            copies.add(new UserInfo(entity));
+        }
+        write(copies, Collections.emptyList());
+        return saved;
+    }
+
+    @Override
+    public UserInfo findOne(String id) {
+        UserInfo info = byId.get(id);
+        return info != null ? new UserInfo(info) : null;
+    }
+
+    @Override
+    public boolean exists(String id) {
+        return byId.containsKey(id);
+    }
+
+    @Override
+    public Iterable<UserInfo> findAll() {
+        List<UserInfo> all = new ArrayList<>(byId.size());
+        for (UserInfo info : byId.values()) {
+            all.add(new UserInfo(info));
+        }
+        return all;
+    }
+
+    @Override
+    public Iterable<UserInfo> findAll(Iterable<String> ids) {
+        List<UserInfo> found = new ArrayList<>();
+        for (String id : ids) {
+            UserInfo info = byId.get(id);
+            if (info != null) {
+                found.add(new UserInfo(info));
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public long count() {
+        return byId.size();
+    }
+
+    @Override
+    public void delete(String id) {
+        write(Collections.emptyList(), Collections.singletonList(id));
+    }
+
+    @Override
+    public void delete(UserInfo entity) {
+        delete(entity.getId());
+    }
+
+    @Override
+    public void delete(Iterable<? extends UserInfo> entities) {
+        List<String> ids = new ArrayList<>();
+        for (UserInfo entity : entities) {
+            ids.add(entity.getId());
+        }
+        write(Collections.emptyList(), ids);
+    }
+
+    @Override
+    public void deleteAll() {
+        write(Collections.emptyList(), new ArrayList<>(byId.keySet()));
+    }
+
+    @Override
+    public List<UserInfo> findByEmail(String email) {
+        Set<String> ids = email != null ? idsByEmail.get(email) : null;
+        if (ids == null)
+            return new ArrayList<>();
+        List<UserInfo> found = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            UserInfo info = byId.get(id);
+            if (info != null) {
+                found.add(new UserInfo(info));
+            }
+        }
+        return found;
+    }
+}
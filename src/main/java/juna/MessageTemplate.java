@@ -0,0 +1,143 @@
+package juna;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+/**
+ * Plain text template with ${name} slots, parsed once. Binding fills some of
+ * the slots and returns a new template where the filled values have been
+ * merged into the surrounding text, so content shared by many recipients is
+ * rendered once and only the remaining slots are filled per recipient.
+ *
+ * A slot written as ${name|url} is URL-encoded, for values in the query of a
+ * link.
+ */
+public class MessageTemplate {
+
+    private static final String URL = "|url";
+
+    // literals.size() == slots.size() + 1, the text is literals[0] slots[0] literals[1] ...
+    private final List<String> literals;
+    private final List<Slot> slots;
+    private final int literalLength;
+
+    private static class Slot {
+
+        private final String name;
+        private final boolean url;
+
+        private Slot(String name, boolean url) {
+            this.name = name;
+            this.url = url;
+        }
+
+        private String format(Object value) {
+            if (!url)
+                return value.toString();
+            try {
+                return URLEncoder.encode(value.toString(), StandardCharsets.UTF_8.name());
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private MessageTemplate(List<String> literals, List<Slot> slots) {
+        this.literals = literals;
+        this.slots = slots;
+        int length = 0;
+        for (String literal : literals) {
+            length += literal.length();
+        }
+        this.literalLength = length;
+    }
+
+    public static MessageTemplate compile(String text) {
+        List<String> literals = new ArrayList<>();
+        List<Slot> slots = new ArrayList<>();
+        int from = 0;
+        while (true) {
+            int start = text.indexOf("${", from);
+            int end = start < 0 ? -1 : text.indexOf('}', start + 2);
+            if (end < 0) {
+                literals.add(text.substring(from));
+                break;
+            }
+            literals.add(text.substring(from, start));
+            String slot = text.substring(start + 2, end).trim();
+            boolean url = slot.endsWith(URL);
+            slots.add(new Slot(url ? slot.substring(0, slot.length() - URL.length()).trim() : slot, url));
+            from = end + 1;
+        }
+        return new MessageTemplate(Collections.unmodifiableList(literals), Collections.unmodifiableList(slots));
+    }
+
+    public List<String> getSlots() {
+        List<String> names = new ArrayList<>(slots.size());
+        for (Slot slot : slots) {
+            names.add(slot.name);
+        }
+        return names;
+    }
+
+    /**
+     * Fills the slots found in values and keeps the others for a later bind or
+     * render.
+     */
+    public MessageTemplate bind(Map<String, ?> values) {
+        List<String> boundLiterals = new ArrayList<>();
+        List<Slot> boundSlots = new ArrayList<>();
+        StringBuilder literal = new StringBuilder(literals.get(0));
+        for (int i = 0; i < slots.size(); i++) {
+            Slot slot = slots.get(i);
+            if (values.containsKey(slot.name)) {
+                Object value = values.get(slot.name);
+                if (value != null) {
+                    literal.append(slot.format(value));
+                }
+                literal.append(literals.get(i + 1));
+            } else {
+                boundLiterals.add(literal.toString());
+                boundSlots.add(slot);
+                literal.setLength(0);
+                literal.append(literals.get(i + 1));
+            }
+        }
+        boundLiterals.add(literal.toString());
+        return new MessageTemplate(Collections.unmodifiableList(boundLiterals), Collections.unmodifiableList(boundSlots));
+    }
+
+    /**
+     * Renders the template, slots missing from values are left empty.
+     */
+    public String render(Map<String, ?> values) {
+        return render(values, (slot, map) -> map.get(slot));
+    }
+
+    /**
+     * Renders the template with the value of each slot looked up from the
+     * context, so that no map has to be built for it. Slots for which values
+     * returns null are left empty.
+     */
+    public <T> String render(T context, BiFunction<String, ? super T, ?> values) {
+        if (slots.isEmpty())
+            return literals.get(0);
+        StringBuilder text = new StringBuilder(literalLength + 16 * slots.size());
+        text.append(literals.get(0));
+        for (int i = 0; i < slots.size(); i++) {
+            Slot slot = slots.get(i);
+            Object value = values.apply(slot.name, context);
+            if (value != null) {
+                text.append(slot.format(value));
+            }
+            text.append(literals.get(i + 1));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,333 @@
+package juna;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Loads the station and cause code catalogues into {@link Juna}. The last
+ * fetched catalogues are kept in a local gzipped snapshot which is used
+ * straight away on the next boot while the catalogues are refreshed in the
+ * background with conditional GETs. All four catalogues are fetched
+ * concurrently. Catalogues which could not be fetched are retried with a
+ * doubling delay, up to juna.metadata.retryMaxSeconds, and the periodic
+ * refresh is scheduled once all of them have been fetched.
+ */
+@Component
+public class MetadataLoader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetadataLoader.class);
+
+    private static final String METADATA_URL = "https://rata.digitraffic.fi/api/v1/metadata/";
+
+    public enum Catalogue {
+        STATIONS("stations"),
+        CAUSE_CATEGORY_CODES("cause-category-codes"),
+        DETAILED_CAUSE_CATEGORY_CODES("detailed-cause-category-codes"),
+        THIRD_CAUSE_CATEGORY_CODES("third-cause-category-codes");
+
+        private final String path;
+
+        private Catalogue(String path) {
+            this.path = path;
+        }
+    }
+
+    public static class Entry {
+
+        private String etag;
+        private String lastModified;
+        private List<Map<String, Object>> data = Collections.emptyList();
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public void setEtag(String etag) {
+            this.etag = etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        public void setLastModified(String lastModified) {
+            this.lastModified = lastModified;
+        }
+
+        public List<Map<String, Object>> getData() {
+            return data;
+        }
+
+        public void setData(List<Map<String, Object>> data) {
+            this.data = data;
+        }
+    }
+
+    @Autowired
+    private Juna juna;
+
+    @Value("${juna.metadata.snapshot:metadata-snapshot.json.gz}")
+    private String snapshotFile;
+
+    @Value("${juna.metadata.refreshHours:24}")
+    private int refreshHours;
+
+    @Value("${juna.metadata.timeoutSeconds:30}")
+    private int timeoutSeconds;
+
+    @Value("${juna.metadata.retryMinSeconds:10}")
+    private int retryMinSeconds;
+
+    @Value("${juna.metadata.retryMaxSeconds:600}")
+    private int retryMaxSeconds;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final JavaType catalogueType = objectMapper.getTypeFactory().constructCollectionType(List.class,
+            objectMapper.getTypeFactory().constructMapType(Map.class, String.class, Object.class));
+
+    private final AtomicInteger fetcherCount = new AtomicInteger();
+    private final ExecutorService fetchers = Executors.newFixedThreadPool(Catalogue.values().length, r -> {
+        Thread thread = new Thread(r, "metadata-fetch-" + fetcherCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "metadata-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // only replaced, never modified
+    private volatile Map<Catalogue, Entry> catalogues = new EnumMap<>(Catalogue.class);
+
+    private CloseableHttpClient httpClient;
+
+    /**
+     * Publishes the local snapshot, if any, and starts refreshing the catalogues.
+     * The returned future completes once Juna has usable metadata: immediately
+     * when a snapshot was found, otherwise after the first fetch, whose failed
+     * catalogues are published empty until a retry succeeds.
+     */
+    public CompletableFuture<Void> start() {
+        int timeout = (int) TimeUnit.SECONDS.toMillis(timeoutSeconds);
+        httpClient = HttpClients.custom()
+                .setMaxConnPerRoute(Catalogue.values().length)
+                .setMaxConnTotal(Catalogue.values().length)
+                .setDefaultRequestConfig(RequestConfig.custom().setConnectTimeout(timeout).setSocketTimeout(timeout).build())
+                .build();
+
+        boolean fromSnapshot = loadSnapshot();
+        CompletableFuture<Set<Catalogue>> refreshed = refresh(EnumSet.allOf(Catalogue.class));
+        refreshed.whenComplete((failed, t) -> scheduleRefresh(failed, 0));
+        return fromSnapshot ? CompletableFuture.completedFuture(null) : refreshed.thenApply(failed -> null);
+    }
+
+    /**
+     * Retries the failed catalogues, if any, with a doubling delay, otherwise
+     * refreshes all of them after refreshHours.
+     */
+    private void scheduleRefresh(Set<Catalogue> failed, int retries) {
+        if (scheduler.isShutdown())
+            return;
+        Set<Catalogue> fetched = failed != null ? failed : EnumSet.allOf(Catalogue.class);
+        if (fetched.isEmpty()) {
+            scheduler.schedule(() -> refreshNow(EnumSet.allOf(Catalogue.class), 0), refreshHours, TimeUnit.HOURS);
+            return;
+        }
+        long delay = Math.min((long) retryMinSeconds << Math.min(retries, 20), retryMaxSeconds);
+        LOGGER.warn("Retrying metadata {} in {} s", fetched, delay);
+        scheduler.schedule(() -> refreshNow(fetched, retries + 1), delay, TimeUnit.SECONDS);
+    }
+
+    private void refreshNow(Set<Catalogue> fetched, int retries) {
+        Set<Catalogue> failed = fetched;
+        try {
+            failed = refresh(fetched).join();
+        } catch (Throwable t) {
+            LOGGER.error("Could not refresh metadata", t);
+        }
+        scheduleRefresh(failed, failed.isEmpty() ? 0 : retries);
+    }
+
+    @PreDestroy
+    public void stop() throws IOException {
+        scheduler.shutdownNow();
+        fetchers.shutdownNow();
+        if (httpClient != null) {
+            httpClient.close();
+        }
+    }
+
+    /**
+     * Fetches the given catalogues and publishes them if any changed. The
+     * returned future completes with the catalogues which could not be fetched.
+     */
+    private CompletableFuture<Set<Catalogue>> refresh(Set<Catalogue> fetched) {
+        Map<Catalogue, CompletableFuture<Entry>> fetches = new EnumMap<>(Catalogue.class);
+        for (Catalogue catalogue : fetched) {
+            Entry previous = catalogues.get(catalogue);
+            fetches.put(catalogue, CompletableFuture.supplyAsync(() -> fetch(catalogue, previous), fetchers));
+        }
+        return CompletableFuture.allOf(fetches.values().toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            // only this refresh replaces the catalogues, the scheduler runs one at a time
+            Map<Catalogue, Entry> current = catalogues;
+            Map<Catalogue, Entry> updated = new EnumMap<>(Catalogue.class);
+            Set<Catalogue> failed = EnumSet.noneOf(Catalogue.class);
+            boolean changed = current.isEmpty();
+            for (Catalogue catalogue : Catalogue.values()) {
+                Entry entry = fetches.containsKey(catalogue) ? fetches.get(catalogue).join() : current.get(catalogue);
+                if (entry == null) {
+                    failed.add(catalogue);
+                    entry = current.getOrDefault(catalogue, new Entry());
+                }
+                updated.put(catalogue, entry);
+                changed |= entry != current.get(catalogue);
+            }
+            if (changed) {
+                publish(updated);
+                saveSnapshot(updated);
+            } else if (failed.isEmpty()) {
+                LOGGER.info("Metadata not modified");
+            }
+            return failed;
+        });
+    }
+
+    /**
+     * Returns the fetched catalogue, the previous one if not modified, or null
+     * if it could not be fetched.
+     */
+    private Entry fetch(Catalogue catalogue, Entry previous) {
+        HttpGet metadataGet = new HttpGet(METADATA_URL + catalogue.path);
+        if (previous != null) {
+            if (previous.etag != null)
+                metadataGet.setHeader(HttpHeaders.IF_NONE_MATCH, previous.etag);
+            if (previous.lastModified != null)
+                metadataGet.setHeader(HttpHeaders.IF_MODIFIED_SINCE, previous.lastModified);
+        }
+        try (CloseableHttpResponse response = httpClient.execute(metadataGet)) {
+            int status = response.getStatusLine().getStatusCode();
+            if (status == HttpStatus.SC_NOT_MODIFIED && previous != null)
+                return previous;
+            if (status != HttpStatus.SC_OK) {
+                LOGGER.error("Could not execute metadataGet {}, status {}", metadataGet, status);
+                return null;
+            }
+            Entry entry = new Entry();
+            entry.etag = headerValue(response.getFirstHeader(HttpHeaders.ETAG));
+            entry.lastModified = headerValue(response.getFirstHeader(HttpHeaders.LAST_MODIFIED));
+            entry.data = objectMapper.readValue(response.getEntity().getContent(), catalogueType);
+            return entry;
+        } catch (Throwable t) {
+            LOGGER.error("Could not execute metadataGet {}", metadataGet, t);
+            return null;
+        }
+    }
+
+    private void publish(Map<Catalogue, Entry> updated) {
+        juna.setMetadata(updated.get(Catalogue.STATIONS).data,
+                updated.get(Catalogue.CAUSE_CATEGORY_CODES).data,
+                updated.get(Catalogue.DETAILED_CAUSE_CATEGORY_CODES).data,
+                updated.get(Catalogue.THIRD_CAUSE_CATEGORY_CODES).data);
+        catalogues = updated;
+    }
+
+    private boolean loadSnapshot() {
+        File file = new File(snapshotFile);
+        if (!file.isFile())
+            return false;
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file.toPath()))) {
+            Map<String, Entry> snapshot = objectMapper.readValue(in,
+                    objectMapper.getTypeFactory().constructMapType(LinkedHashMap.class, String.class, Entry.class));
+            Map<Catalogue, Entry> loaded = new EnumMap<>(Catalogue.class);
+            for (Catalogue catalogue : Catalogue.values()) {
+                Entry entry = snapshot.get(catalogue.name());
+                loaded.put(catalogue, entry != null ? entry : new Entry());
+            }
+            publish(loaded);
+            LOGGER.info("Loaded metadata snapshot {}", file);
+            return true;
+        } catch (Throwable t) {
+            LOGGER.error("Could not load metadata snapshot {}", file, t);
+            return false;
+        }
+    }
+
+    private void saveSnapshot(Map<Catalogue, Entry> updated) {
+        Map<String, Entry> snapshot = new LinkedHashMap<>();
+        for (Map.Entry<Catalogue, Entry> entry : updated.entrySet()) {
+            // do not replace a good snapshot with failed fetches
+            if (entry.getValue().data.isEmpty())
+                return;
+            snapshot.put(entry.getKey().name(), entry.getValue());
+        }
+        Path target = Paths.get(snapshotFile).toAbsolutePath();
+        Path temp = null;
+        try {
+            // written next to the target and renamed so a crash never leaves a truncated snapshot
+            temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(temp))) {
+                objectMapper.writeValue(out, snapshot);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOGGER.info("Saved metadata snapshot {}", target);
+        } catch (Throwable t) {
+            LOGGER.error("Could not save metadata snapshot {}", target, t);
+            deleteQuietly(temp);
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        if (path == null)
+            return;
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOGGER.warn("Could not delete {}", path, e);
+        }
+    }
+
+    private static String headerValue(Header header) {
+        return header != null ? header.getValue() : null;
+    }
+}
@@ -0,0 +1,132 @@
+package juna;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+
+/**
+ * Renders train alerts from the mail/*.txt templates. Everything that depends
+ * only on the train event, such as the station name and the cause, is
+ * rendered once per event and only the recipient slots (email, threshold and
+ * trainId) are filled for each follower, straight from the subscription.
+ *
+ * A template starts with the subject line followed by an empty line and the
+ * body.
+ */
+@Component
+public class NotificationRenderer {
+
+    public static final String EMAIL = "email";
+    public static final String THRESHOLD = "threshold";
+    public static final String TRAIN_ID = "trainId";
+
+    @Autowired
+    private Juna juna;
+
+    private Template cancelled;
+    private Template late;
+    private Template recovered;
+
+    private static class Template {
+
+        private final MessageTemplate subject;
+        private final MessageTemplate body;
+
+        public Template(MessageTemplate subject, MessageTemplate body) {
+            this.subject = subject;
+            this.body = body;
+        }
+    }
+
+    public static class RenderedAlert {
+
+        private final MessageTemplate subject;
+        private final MessageTemplate body;
+
+        private RenderedAlert(Template template, Map<String, ?> values) {
+            this.subject = template.subject.bind(values);
+            this.body = template.body.bind(values);
+        }
+
+        public String getSubject(Subscription subscription) {
+            return subject.render(subscription, RenderedAlert::recipientValue);
+        }
+
+        public String getText(Subscription subscription) {
+            return body.render(subscription, RenderedAlert::recipientValue);
+        }
+
+        private static Object recipientValue(String slot, Subscription subscription) {
+            switch (slot) {
+            case EMAIL:
+                return subscription.getUserInfo().getEmail();
+            case THRESHOLD:
+                return subscription.getDifference();
+            case TRAIN_ID:
+                return subscription.getTrainId();
+            default:
+                return null;
+            }
+        }
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        cancelled = load("mail/cancelled.txt");
+        late = load("mail/late.txt");
+        recovered = load("mail/recovered.txt");
+    }
+
+    public RenderedAlert cancelled(Train train) {
+        return new RenderedAlert(cancelled, trainValues(train));
+    }
+
+    public RenderedAlert late(Train train, TimeTableRow actual, int actualDifference) {
+        return late(train, actual.getStationShortCode(), actual.getCause(), actualDifference);
+    }
+
+    public RenderedAlert late(Train train, String stationShortCode, Cause cause, int difference) {
+        Map<String, Object> values = trainValues(train);
+        values.put("difference", difference);
+        values.put("station", juna.getStationNameByShortCode(stationShortCode));
+        values.put("cause", juna.resolveCauseToHumanMessage(cause));
+        return new RenderedAlert(late, values);
+    }
+
+    public RenderedAlert recovered(Train train, int actualDifference) {
+        Map<String, Object> values = trainValues(train);
+        values.put("difference", actualDifference);
+        return new RenderedAlert(recovered, values);
+    }
+
+    private Map<String, Object> trainValues(Train train) {
+        Map<String, Object> values = new HashMap<>();
+        values.put("line", train.getCommuterLineID());
+        values.put("train", train.getTrainNumber());
+        values.put("server", juna.getServername());
+        return values;
+    }
+
+    private static Template load(String path) throws IOException {
+        String text;
+        try (InputStream in = new ClassPathResource(path).getInputStream()) {
+            text = StreamUtils.copyToString(in, StandardCharsets.UTF_8);
+        }
+        if (text.endsWith("\n")) {
+            text = text.substring(0, text.length() - 1);
+        }
+        int separator = text.indexOf("\n\n");
+        if (separator < 0)
+            throw new IOException("Template " + path + " has no empty line after the subject");
+        return new Template(MessageTemplate.compile(text.substring(0, separator)), MessageTemplate.compile(text.substring(separator + 2)));
+    }
+}
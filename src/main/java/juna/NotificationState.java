@@ -0,0 +1,208 @@
+package juna;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Remembers what has already been reported per (user, trainId, departureDate)
+ * so that a train which stays late does not produce an email on every frame.
+ * Each trainId a user follows a train with, such as 8541:3@PSL and
+ * 8541:10@TPE, has its own delay band; a cancellation is reported once per
+ * user and train. A new alert is sent only when the delay grows into a new band,
+ * the train gets cancelled or the delay recovers below the user's threshold.
+ * Recovery needs the delay to fall juna.notification.recoveryMarginMinutes
+ * below the threshold, or to zero for small thresholds, so that a delay
+ * hovering around the threshold is not reported on every frame.
+ *
+ * The states are split into stripes by trainNumber, each with its own lock,
+ * like the partitions of the processing threads: with a thread count dividing
+ * {@link #STRIPES} the workers never wait for each other here. Once there are
+ * more than juna.notification.maxStates states in total, adding one evicts
+ * the least recently used state of its stripe.
+ */
+@Component
+public class NotificationState {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NotificationState.class);
+
+    private static final ZoneId FINLAND = ZoneId.of("Europe/Helsinki");
+
+    static final int STRIPES = 64;
+
+    public enum Notification {
+        NONE, LATE, CANCELLED, RECOVERED
+    }
+
+    private final int bandMinutes;
+    private final int recoveryMarginMinutes;
+    private final int maxStates;
+    private final AtomicInteger size = new AtomicInteger();
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    // guarded by this
+    private LocalDate lastPurge;
+
+    public NotificationState(@Value("${juna.notification.bandMinutes:10}") int bandMinutes,
+            @Value("${juna.notification.recoveryMarginMinutes:2}") int recoveryMarginMinutes,
+            @Value("${juna.notification.maxStates:100000}") int maxStates) {
+        this.bandMinutes = Math.max(1, bandMinutes);
+        this.recoveryMarginMinutes = Math.max(1, recoveryMarginMinutes);
+        this.maxStates = maxStates;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    public Notification cancelled(String email, int trainNumber, String departureDate) {
+        Stripe stripe = stripe(trainNumber);
+        synchronized (stripe) {
+            State state = stripe.state(new Key(email, trainNumber, null, departureDate));
+            if (state.cancelled)
+                return Notification.NONE;
+            state.cancelled = true;
+            return Notification.CANCELLED;
+        }
+    }
+
+    public Notification difference(String email, int trainNumber, String trainId, String departureDate, int threshold, int difference) {
+        Key key = new Key(email, trainNumber, trainId, departureDate);
+        Stripe stripe = stripe(trainNumber);
+        synchronized (stripe) {
+            if (difference > threshold) {
+                State state = stripe.state(key);
+                int band = (difference - threshold - 1) / bandMinutes;
+                if (band <= state.band)
+                    return Notification.NONE;
+                state.band = band;
+                return Notification.LATE;
+            }
+            State state = stripe.states.get(key);
+            if (state == null || state.band < 0 || difference > recoveredAt(threshold))
+                return Notification.NONE;
+            state.band = -1;
+            return Notification.RECOVERED;
+        }
+    }
+
+    /**
+     * The delay at or below which a late train counts as recovered: the margin
+     * below the threshold, but at least being on time once the threshold
+     * allows it.
+     */
+    private int recoveredAt(int threshold) {
+        return Math.max(threshold - recoveryMarginMinutes, Math.min(threshold - 1, 0));
+    }
+
+    /**
+     * Drops the states of trains whose departure date has passed. Trains running
+     * past midnight keep their state for one extra day.
+     */
+    public void purge() {
+        LocalDate today = LocalDate.now(FINLAND);
+        synchronized (this) {
+            if (today.equals(lastPurge))
+                return;
+            lastPurge = today;
+        }
+        String oldest = today.minusDays(1).toString();
+        int removed = 0;
+        int remaining = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                Iterator<Key> keys = stripe.states.keySet().iterator();
+                while (keys.hasNext()) {
+                    Key key = keys.next();
+                    if (key.departureDate == null || key.departureDate.compareTo(oldest) < 0) {
+                        keys.remove();
+                        size.decrementAndGet();
+                        removed++;
+                    }
+                }
+                remaining += stripe.states.size();
+            }
+        }
+        LOGGER.info("Purged {} notification states, {} remaining", removed, remaining);
+    }
+
+    private Stripe stripe(int trainNumber) {
+        return stripes[Math.floorMod(trainNumber, STRIPES)];
+    }
+
+    private class Stripe {
+
+        // guarded by this, least recently used first
+        private final Map<Key, State> states = new LinkedHashMap<Key, State>(64, 0.75f, true) {
+            private static final long serialVersionUID = 3412095728843557312L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, State> eldest) {
+                // never the state just added, which is the only one of an empty stripe
+                if (size() > 1 && size.get() > maxStates) {
+                    size.decrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        private State state(Key key) {
+            return states.computeIfAbsent(key, k -> {
+                size.incrementAndGet();
+                return new State();
+            });
+        }
+    }
+
+    private static class State {
+
+        private int band = -1;
+        private boolean cancelled;
+    }
+
+    private static class Key {
+
+        private final String email;
+        private final int trainNumber;
+        // null for the cancellation of the train
+        private final String trainId;
+        private final String departureDate;
+
+        public Key(String email, int trainNumber, String trainId, String departureDate) {
+            this.email = email;
+            this.trainNumber = trainNumber;
+            this.trainId = trainId;
+            this.departureDate = departureDate;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = 31 + trainNumber;
+            result = 31 * result + (email == null ? 0 : email.hashCode());
+            result = 31 * result + (trainId == null ? 0 : trainId.hashCode());
+            result = 31 * result + (departureDate == null ? 0 : departureDate.hashCode());
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return trainNumber == other.trainNumber
+                    && (email == null ? other.email == null : email.equals(other.email))
+                    && (trainId == null ? other.trainId == null : trainId.equals(other.trainId))
+                    && (departureDate == null ? other.departureDate == null : departureDate.equals(other.departureDate));
+        }
+    }
+}
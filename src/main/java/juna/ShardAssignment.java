@@ -0,0 +1,116 @@
+package juna;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Spreads the trains over the {@link ClusterMembership} with a
+ * {@link ShardRing}. {@link SubscriptionIndex} only exposes the trains this
+ * node owns, so the node subscribes to, matches and notifies for its own shard
+ * only, and the shards are rebalanced whenever a node joins or leaves.
+ *
+ * Sign-ups reach the index of the node which served them, which announces the
+ * changed trains through the membership. Each other node reloads the
+ * announced trains it owns from the TrainSubscription table, one query per
+ * train, and those announced while another node owned them when it takes
+ * them over.
+ */
+@Component
+public class ShardAssignment {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardAssignment.class);
+
+    @Autowired
+    private ClusterMembership membership;
+
+    @Autowired
+    private SubscriptionIndex subscriptionIndex;
+
+    @Autowired
+    private TrainSubscriptionStore trainSubscriptionStore;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${juna.cluster.virtualNodes:64}")
+    private int virtualNodes;
+
+    private volatile ShardRing ring;
+    private ExecutorService reloader;
+    private Counter reloadedTrains;
+
+    @PostConstruct
+    public void start() {
+        reloadedTrains = meterRegistry.counter("juna.cluster.reloads");
+        reloader = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "shard-reload");
+            thread.setDaemon(true);
+            return thread;
+        });
+        rebalance();
+        membership.addMembersListener(this::rebalance);
+        membership.addChangedTrainsListener(this::changed);
+        subscriptionIndex.addUpdateListener(membership::announceChangedTrains);
+        meterRegistry.gauge("juna.cluster.members", this, a -> a.ring.getMembers().size());
+    }
+
+    @PreDestroy
+    public void stop() {
+        reloader.shutdownNow();
+    }
+
+    public boolean owns(int trainNumber) {
+        return membership.getNodeId().equals(ring.owner(trainNumber));
+    }
+
+    private synchronized void rebalance() {
+        ShardRing updated = new ShardRing(membership.getMembers(), virtualNodes);
+        if (ring != null && ring.getMembers().equals(updated.getMembers()))
+            return;
+        ring = updated;
+        LOGGER.info("Node {} sharing trains with members {}", membership.getNodeId(), updated.getMembers());
+        subscriptionIndex.setShard(this::owns);
+        reloader.execute(this::reload);
+    }
+
+    private void changed(Set<Integer> trainNumbers) {
+        // with juna.storage=local there is no shared table to reload from
+        if (!trainSubscriptionStore.isEnabled())
+            return;
+        subscriptionIndex.markStale(trainNumbers);
+        reloader.execute(this::reload);
+    }
+
+    private void reload() {
+        Map<Integer, List<Subscription>> reloaded = new HashMap<>();
+        for (Integer trainNumber : subscriptionIndex.staleOwnedTrains()) {
+            try {
+                reloaded.put(trainNumber, trainSubscriptionStore.findByTrainNumber(trainNumber));
+            } catch (Exception e) {
+                // stays stale until the next announcement or rebalance
+                LOGGER.error("Could not reload subscriptions of train {}", trainNumber, e);
+            }
+        }
+        if (reloaded.isEmpty())
+            return;
+        subscriptionIndex.replaceTrains(reloaded);
+        reloadedTrains.increment(reloaded.size());
+        LOGGER.debug("Reloaded subscriptions of trains {}", reloaded.keySet());
+    }
+}
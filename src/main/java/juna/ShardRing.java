@@ -0,0 +1,78 @@
+package juna;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Consistent hash ring of node ids. Each node is placed on the ring at a
+ * number of virtual points and owns the trainNumbers hashing up to them, so a
+ * node joining or leaving moves only its own share of the trains.
+ */
+public class ShardRing {
+
+    private final List<String> members;
+    private final long[] points;
+    private final String[] owners;
+
+    public ShardRing(Collection<String> members, int virtualNodes) {
+        this.members = Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(members)));
+        int count = this.members.size() * Math.max(1, virtualNodes);
+        long[][] ring = new long[count][];
+        int i = 0;
+        for (int m = 0; m < this.members.size(); m++) {
+            long base = hash(this.members.get(m));
+            for (int v = 0; v < Math.max(1, virtualNodes); v++) {
+                ring[i++] = new long[] { mix(base + v * 0x9E3779B97F4A7C15L), m };
+            }
+        }
+        Arrays.sort(ring, (a, b) -> Long.compare(a[0], b[0]));
+        points = new long[count];
+        owners = new String[count];
+        for (i = 0; i < count; i++) {
+            points[i] = ring[i][0];
+            owners[i] = this.members.get((int) ring[i][1]);
+        }
+    }
+
+    public List<String> getMembers() {
+        return members;
+    }
+
+    /**
+     * The node owning the train, or null if the ring is empty.
+     */
+    public String owner(int trainNumber) {
+        if (points.length == 0)
+            return null;
+        int index = Arrays.binarySearch(points, mix(trainNumber));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+
+    private static long hash(String nodeId) {
+        // FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : nodeId.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b;
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long key) {
+        // MurmurHash3 finalizer, spreads consecutive trainNumbers over the ring
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
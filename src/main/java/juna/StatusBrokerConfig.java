@@ -0,0 +1,132 @@
+package juna;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageDeliveryException;
+import org.springframework.messaging.simp.config.ChannelRegistration;
+import org.springframework.messaging.simp.config.MessageBrokerRegistry;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ChannelInterceptorAdapter;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
+import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
+import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketTransportRegistration;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+import org.springframework.web.socket.server.standard.ServletServerContainerFactoryBean;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * STOMP over plain WebSocket at /status/websocket for the status page, with
+ * Spring's simple broker fanning {@link TrainStatusPublisher} updates out to
+ * the subscribers of /trains/{trainNumber}. Browsers only connect and
+ * subscribe, so the inbound buffers are kept small and sending is rejected,
+ * and a session which cannot keep up within the send limits is closed rather
+ * than buffered without bound.
+ */
+@Configuration
+@EnableWebSocketMessageBroker
+public class StatusBrokerConfig implements WebSocketMessageBrokerConfigurer {
+
+    public static final String ENDPOINT = "/status/websocket";
+    public static final String TRAINS = "/trains/";
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${juna.status.inboundBufferBytes:1024}")
+    private int inboundBufferBytes;
+
+    @Value("${juna.status.sendBufferBytes:16384}")
+    private int sendBufferBytes;
+
+    @Value("${juna.status.sendTimeLimitMillis:10000}")
+    private int sendTimeLimitMillis;
+
+    private final AtomicInteger sessions = new AtomicInteger();
+
+    @PostConstruct
+    public void start() {
+        meterRegistry.gauge("juna.status.sessions", sessions);
+    }
+
+    @Override
+    public void registerStompEndpoints(StompEndpointRegistry registry) {
+        // no SockJS fallback, which would keep a message cache and a heartbeat task per session
+        registry.addEndpoint(ENDPOINT);
+        // ahead of the controllers, whose POST mappings match every path
+        registry.setOrder(-1);
+    }
+
+    @Override
+    public void configureMessageBroker(MessageBrokerRegistry registry) {
+        registry.enableSimpleBroker(TRAINS);
+    }
+
+    @Override
+    public void configureWebSocketTransport(WebSocketTransportRegistration registration) {
+        registration.setMessageSizeLimit(inboundBufferBytes);
+        registration.setSendBufferSizeLimit(sendBufferBytes);
+        registration.setSendTimeLimit(sendTimeLimitMillis);
+        registration.addDecoratorFactory(handler -> new WebSocketHandlerDecorator(handler) {
+            @Override
+            public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+                sessions.incrementAndGet();
+                super.afterConnectionEstablished(session);
+            }
+
+            @Override
+            public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+                sessions.decrementAndGet();
+                super.afterConnectionClosed(session, closeStatus);
+            }
+        });
+    }
+
+    @Override
+    public void configureClientInboundChannel(ChannelRegistration registration) {
+        registration.interceptors(new ChannelInterceptorAdapter() {
+            @Override
+            public Message<?> preSend(Message<?> message, MessageChannel channel) {
+                StompHeaderAccessor accessor = StompHeaderAccessor.wrap(message);
+                StompCommand command = accessor.getCommand();
+                if (command == StompCommand.SEND) {
+                    // the status is published by the server only
+                    throw new MessageDeliveryException(message, "Sending is not supported");
+                } else if (command == StompCommand.SUBSCRIBE && !isTrainDestination(accessor.getDestination())) {
+                    throw new MessageDeliveryException(message, "Unknown destination " + accessor.getDestination());
+                }
+                return message;
+            }
+        });
+    }
+
+    @Bean
+    public ServletServerContainerFactoryBean createWebSocketContainer() {
+        ServletServerContainerFactoryBean container = new ServletServerContainerFactoryBean();
+        container.setMaxTextMessageBufferSize(inboundBufferBytes);
+        container.setMaxBinaryMessageBufferSize(inboundBufferBytes);
+        return container;
+    }
+
+    private static boolean isTrainDestination(String destination) {
+        if (destination == null || !destination.startsWith(TRAINS) || destination.length() == TRAINS.length())
+            return false;
+        for (int i = TRAINS.length(); i < destination.length(); i++) {
+            if (!Character.isDigit(destination.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+}
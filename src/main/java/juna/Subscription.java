@@ -0,0 +1,92 @@
+package juna;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class Subscription {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Subscription.class);
+
+    public static final int DEFAULT_DIFFERENCE = 5;
+
+    private final String trainId;
+    private final int trainNumber;
+    private final int difference;
+    private final String station;
+    private final UserInfo userInfo;
+
+    public Subscription(String trainId, int trainNumber, int difference, UserInfo userInfo) {
+        this(trainId, trainNumber, difference, null, userInfo);
+    }
+
+    public Subscription(String trainId, int trainNumber, int difference, String station, UserInfo userInfo) {
+        this.trainId = trainId;
+        this.trainNumber = trainNumber;
+        this.difference = difference;
+        this.station = station;
+        this.userInfo = userInfo;
+    }
+
+    /**
+     * The trainId as stored in {@link UserInfo#getTrainIds()}, used in removal links.
+     */
+    public String getTrainId() {
+        return trainId;
+    }
+
+    public int getTrainNumber() {
+        return trainNumber;
+    }
+
+    public int getDifference() {
+        return difference;
+    }
+
+    /**
+     * The short code of the station where the user boards, or null to follow
+     * the train's latest actual delay wherever it is.
+     */
+    public String getStation() {
+        return station;
+    }
+
+    public UserInfo getUserInfo() {
+        return userInfo;
+    }
+
+    /**
+     * Parses trainIds of the form trainNumber[:difference][@station], e.g.
+     * 8541, 8541:3 or 8541:3@PSL.
+     */
+    public static List<Subscription> parse(UserInfo info) {
+        List<Subscription> subscriptions = new ArrayList<>();
+        if (info.getTrainIds() == null)
+            return subscriptions;
+        for (String trid : info.getTrainIds()) {
+            try {
+                int difference = DEFAULT_DIFFERENCE;
+                String station = null;
+                String train = trid;
+                int at = trid.indexOf('@');
+                if (at >= 0) {
+                    station = trid.substring(at + 1).trim().toUpperCase().intern();
+                    train = trid.substring(0, at);
+                    if (station.isEmpty())
+                        throw new IllegalArgumentException("Empty station");
+                }
+                String[] parts = train.split(":");
+                int trainNumber = Integer.parseInt(parts[0].trim());
+                if (parts.length > 1) {
+                    difference = Integer.parseInt(parts[1].trim());
+                }
+                subscriptions.add(new Subscription(trid, trainNumber, difference, station, info));
+            } catch (Exception e) {
+                LOGGER.error("Could not parse trainId {} of user {}", trid, info.getEmail(), e);
+            }
+        }
+        return subscriptions;
+    }
+}
@@ -0,0 +1,299 @@
+package juna;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * In-memory trainNumber -> subscribers index of approved users. Loaded once at
+ * startup and kept up to date by {@link TrainsController} and
+ * {@link ShardAssignment}, so that handling a live-trains frame needs no
+ * repository access.
+ *
+ * Readers get an immutable snapshot of the trains of this node's shard, see
+ * {@link ShardAssignment}, which every write builds aside and publishes as a
+ * whole. The list of a train is only replaced when its subscribers change.
+ */
+@Component
+public class SubscriptionIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SubscriptionIndex.class);
+
+    // guarded by this
+    private final Map<Integer, List<Subscription>> byTrain = new HashMap<>();
+
+    // guarded by this, the trains each user follows
+    private final Map<String, Set<Integer>> trainsByEmail = new HashMap<>();
+
+    // guarded by this, trains changed on other nodes which have not been reloaded yet
+    private final Set<Integer> staleTrains = new HashSet<>();
+
+    // guarded by this
+    private IntPredicate shard = trainNumber -> true;
+
+    // the trains of byTrain which this node owns, replaced, never modified
+    private volatile Map<Integer, List<Subscription>> owned = Collections.emptyMap();
+
+    // replaced, never modified, on every write so that lookups need no boxing or locking
+    private volatile BitSet subscribedTrains = new BitSet();
+
+    private final List<Runnable> trainsListeners = new CopyOnWriteArrayList<>();
+    private final List<Consumer<Set<Integer>>> updateListeners = new CopyOnWriteArrayList<>();
+
+    public void load(Iterable<UserInfo> infos) {
+        List<Subscription> subscriptions = new ArrayList<>();
+        if (infos != null) {
+            for (UserInfo info : infos) {
+                if (info != null && info.getEmail() != null && isApproved(info)) {
+                    subscriptions.addAll(Subscription.parse(info));
+                }
+            }
+        }
+        loadSubscriptions(subscriptions);
+    }
+
+    /**
+     * Replaces the index with the given subscriptions of approved users, such
+     * as those read from the TrainSubscription table.
+     */
+    public void loadSubscriptions(Iterable<Subscription> subscriptions) {
+        Map<Integer, List<Subscription>> loaded = byTrain(subscriptions);
+        boolean changed;
+        synchronized (this) {
+            for (Integer trainNumber : new ArrayList<>(byTrain.keySet())) {
+                if (!loaded.containsKey(trainNumber)) {
+                    putTrain(trainNumber, Collections.emptyList());
+                }
+            }
+            for (Map.Entry<Integer, List<Subscription>> entry : loaded.entrySet()) {
+                putTrain(entry.getKey(), entry.getValue());
+            }
+            staleTrains.clear();
+            changed = publish();
+            LOGGER.info("Loaded subscriptions of {} users for {} trains, {} of them owned", trainsByEmail.size(), byTrain.size(), owned.size());
+        }
+        if (changed)
+            fireTrainsChanged();
+    }
+
+    public void update(UserInfo info) {
+        replaceUser(info.getEmail(), isApproved(info) ? Subscription.parse(info) : Collections.emptyList());
+    }
+
+    public void remove(UserInfo info) {
+        replaceUser(info.getEmail(), Collections.emptyList());
+    }
+
+    /**
+     * Replaces the subscriptions of the given trains, as reloaded from the
+     * TrainSubscription table.
+     */
+    public void replaceTrains(Map<Integer, List<Subscription>> trains) {
+        boolean changed;
+        synchronized (this) {
+            for (Map.Entry<Integer, List<Subscription>> entry : trains.entrySet()) {
+                putTrain(entry.getKey(), entry.getValue());
+                staleTrains.remove(entry.getKey());
+            }
+            changed = publish();
+        }
+        if (changed)
+            fireTrainsChanged();
+    }
+
+    /**
+     * Marks trains whose subscribers have changed elsewhere, to be reloaded by
+     * the node which owns them.
+     */
+    public synchronized void markStale(Set<Integer> trainNumbers) {
+        staleTrains.addAll(trainNumbers);
+    }
+
+    /**
+     * The stale trains which this node owns.
+     */
+    public synchronized Set<Integer> staleOwnedTrains() {
+        Set<Integer> trains = new HashSet<>();
+        for (Integer trainNumber : staleTrains) {
+            if (shard.test(trainNumber)) {
+                trains.add(trainNumber);
+            }
+        }
+        return trains;
+    }
+
+    /**
+     * Limits the visible trains to those the predicate accepts.
+     */
+    public void setShard(IntPredicate shard) {
+        boolean changed;
+        synchronized (this) {
+            this.shard = shard;
+            changed = publish();
+            LOGGER.info("Owning {} of {} followed trains", owned.size(), byTrain.size());
+        }
+        if (changed)
+            fireTrainsChanged();
+    }
+
+    /**
+     * Registers a listener which is called, outside of any lock, whenever a
+     * train gains its first or loses its last subscriber, or moves to or from
+     * this node's shard.
+     */
+    public void addTrainsListener(Runnable listener) {
+        trainsListeners.add(listener);
+    }
+
+    /**
+     * Registers a listener which is called, outside of any lock, with the
+     * trains whose subscribers a user added or removed on this node.
+     */
+    public void addUpdateListener(Consumer<Set<Integer>> listener) {
+        updateListeners.add(listener);
+    }
+
+    public Map<Integer, List<Subscription>> subscriptionsByTrain() {
+        return owned;
+    }
+
+    public boolean isSubscribed(int trainNumber) {
+        return trainNumber >= 0 && subscribedTrains.get(trainNumber);
+    }
+
+    public List<Subscription> subscriptions(int trainNumber) {
+        return owned.getOrDefault(trainNumber, Collections.emptyList());
+    }
+
+    private void replaceUser(String email, List<Subscription> subscriptions) {
+        if (email == null)
+            return;
+        Map<Integer, List<Subscription>> added = byTrain(subscriptions);
+        Set<Integer> trains;
+        boolean changed;
+        synchronized (this) {
+            trains = new HashSet<>(trainsByEmail.getOrDefault(email, Collections.emptySet()));
+            trains.addAll(added.keySet());
+            for (Integer trainNumber : trains) {
+                List<Subscription> updated = new ArrayList<>();
+                for (Subscription subscription : byTrain.getOrDefault(trainNumber, Collections.emptyList())) {
+                    if (!email.equals(subscription.getUserInfo().getEmail())) {
+                        updated.add(subscription);
+                    }
+                }
+                updated.addAll(added.getOrDefault(trainNumber, Collections.emptyList()));
+                putTrain(trainNumber, updated);
+            }
+            changed = publish();
+        }
+        fireUpdated(trains);
+        if (changed)
+            fireTrainsChanged();
+    }
+
+    private void putTrain(int trainNumber, List<Subscription> subscriptions) {
+        List<Subscription> current = byTrain.remove(trainNumber);
+        if (current != null) {
+            for (Subscription subscription : current) {
+                Set<Integer> trains = trainsByEmail.get(subscription.getUserInfo().getEmail());
+                if (trains != null && trains.remove(trainNumber) && trains.isEmpty()) {
+                    trainsByEmail.remove(subscription.getUserInfo().getEmail());
+                }
+            }
+        }
+        if (subscriptions.isEmpty())
+            return;
+        // an unchanged list lets the notifier skip trains it has already handled
+        byTrain.put(trainNumber, isSame(current, subscriptions) ? current : Collections.unmodifiableList(new ArrayList<>(subscriptions)));
+        for (Subscription subscription : subscriptions) {
+            trainsByEmail.computeIfAbsent(subscription.getUserInfo().getEmail(), email -> new HashSet<>()).add(trainNumber);
+        }
+    }
+
+    /**
+     * Rebuilds the snapshot of the owned trains, returning true if the
+     * followed trains changed.
+     */
+    private boolean publish() {
+        Map<Integer, List<Subscription>> owning = new HashMap<>();
+        BitSet trains = new BitSet();
+        for (Map.Entry<Integer, List<Subscription>> entry : byTrain.entrySet()) {
+            int trainNumber = entry.getKey();
+            if (shard.test(trainNumber)) {
+                owning.put(trainNumber, entry.getValue());
+                if (trainNumber >= 0) {
+                    trains.set(trainNumber);
+                }
+            }
+        }
+        owned = Collections.unmodifiableMap(owning);
+        boolean changed = !trains.equals(subscribedTrains);
+        subscribedTrains = trains;
+        return changed;
+    }
+
+    private static Map<Integer, List<Subscription>> byTrain(Iterable<Subscription> subscriptions) {
+        Map<Integer, List<Subscription>> trains = new LinkedHashMap<>();
+        for (Subscription subscription : subscriptions) {
+            if (subscription.getUserInfo().getEmail() != null) {
+                trains.computeIfAbsent(subscription.getTrainNumber(), trainNumber -> new ArrayList<>(1)).add(subscription);
+            }
+        }
+        return trains;
+    }
+
+    private static boolean isSame(List<Subscription> current, List<Subscription> subscriptions) {
+        if (current == null || current.size() != subscriptions.size())
+            return false;
+        for (int i = 0; i < current.size(); i++) {
+            Subscription a = current.get(i);
+            Subscription b = subscriptions.get(i);
+            if (!Objects.equals(a.getTrainId(), b.getTrainId())
+                    || !Objects.equals(a.getUserInfo().getEmail(), b.getUserInfo().getEmail())
+                    || !Objects.equals(a.getUserInfo().getId(), b.getUserInfo().getId()))
+                return false;
+        }
+        return true;
+    }
+
+    private void fireUpdated(Set<Integer> trains) {
+        if (trains.isEmpty())
+            return;
+        Set<Integer> changed = Collections.unmodifiableSet(trains);
+        for (Consumer<Set<Integer>> listener : updateListeners) {
+            try {
+                listener.accept(changed);
+            } catch (Throwable t) {
+                LOGGER.error("Could not notify update listener {}", listener, t);
+            }
+        }
+    }
+
+    private void fireTrainsChanged() {
+        for (Runnable listener : trainsListeners) {
+            try {
+                listener.run();
+            } catch (Throwable t) {
+                LOGGER.error("Could not notify trains listener {}", listener, t);
+            }
+        }
+    }
+
+    static boolean isApproved(UserInfo info) {
+        return info.getApprovalPending() == null || info.getApprovalPending().isEmpty();
+    }
+}
@@ -0,0 +1,86 @@
+package juna;
+
+import java.util.List;
+
+public class TimeTableRow {
+
+    public static final long NO_TIME = Long.MIN_VALUE;
+
+    private final String stationShortCode;
+    private final String type;
+    private final long scheduledTime;
+    private final long actualTime;
+    private final long liveEstimateTime;
+    private final int differenceInMinutes;
+    private final boolean cancelled;
+    private final List<Cause> causes;
+
+    public TimeTableRow(String stationShortCode, String type, long scheduledTime, long actualTime, long liveEstimateTime,
+            int differenceInMinutes, boolean cancelled, List<Cause> causes) {
+        this.stationShortCode = stationShortCode;
+        this.type = type;
+        this.scheduledTime = scheduledTime;
+        this.actualTime = actualTime;
+        this.liveEstimateTime = liveEstimateTime;
+        this.differenceInMinutes = differenceInMinutes;
+        this.cancelled = cancelled;
+        this.causes = causes;
+    }
+
+    public String getStationShortCode() {
+        return stationShortCode;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public long getScheduledTime() {
+        return scheduledTime;
+    }
+
+    public long getActualTime() {
+        return actualTime;
+    }
+
+    public boolean hasActualTime() {
+        return actualTime != NO_TIME;
+    }
+
+    public long getLiveEstimateTime() {
+        return liveEstimateTime;
+    }
+
+    public boolean hasLiveEstimateTime() {
+        return liveEstimateTime != NO_TIME;
+    }
+
+    public int getDifferenceInMinutes() {
+        return differenceInMinutes;
+    }
+
+    /**
+     * The difference from the schedule in minutes: the actual one once the train
+     * has passed, otherwise the live estimate, or the given fallback if neither
+     * is known.
+     */
+    public int getEstimatedDifferenceInMinutes(int fallback) {
+        if (hasActualTime())
+            return differenceInMinutes;
+        if (hasLiveEstimateTime() && scheduledTime != NO_TIME)
+            return (int) Math.round((liveEstimateTime - scheduledTime) / 60000.0);
+        return fallback;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public List<Cause> getCauses() {
+        return causes;
+    }
+
+    public Cause getCause() {
+        return causes.isEmpty() ? null : causes.get(0);
+    }
+}
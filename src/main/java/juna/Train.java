@@ -0,0 +1,117 @@
+package juna;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class Train {
+
+    private final int trainNumber;
+    private final String departureDate;
+    private final String commuterLineID;
+    private final boolean cancelled;
+    private final long version;
+    private final List<TimeTableRow> timeTableRows;
+    private final long receivedAt;
+
+    private final TimeTableRow latestActualRow;
+    private final TimeTableRow nextEstimateRow;
+
+    // built on first use, only when someone follows the train at a station, and
+    // assigned once complete as processing threads may share the train
+    private volatile Map<String, TimeTableRow> rowsByStation;
+
+    public Train(int trainNumber, String departureDate, String commuterLineID, boolean cancelled, long version,
+            List<TimeTableRow> timeTableRows, long receivedAt) {
+        this.trainNumber = trainNumber;
+        this.departureDate = departureDate;
+        this.commuterLineID = commuterLineID;
+        this.cancelled = cancelled;
+        this.version = version;
+        this.timeTableRows = timeTableRows;
+        this.receivedAt = receivedAt;
+
+        // latest actual and earliest live estimate in a single pass
+        TimeTableRow latestActual = null;
+        TimeTableRow nextEstimate = null;
+        for (int i = 0; i < timeTableRows.size(); i++) {
+            TimeTableRow row = timeTableRows.get(i);
+            if (row.hasActualTime() && (latestActual == null || row.getActualTime() > latestActual.getActualTime())) {
+                latestActual = row;
+            }
+            if (row.hasLiveEstimateTime() && (nextEstimate == null || row.getLiveEstimateTime() < nextEstimate.getLiveEstimateTime())) {
+                nextEstimate = row;
+            }
+        }
+        this.latestActualRow = latestActual;
+        this.nextEstimateRow = nextEstimate;
+    }
+
+    public int getTrainNumber() {
+        return trainNumber;
+    }
+
+    public String getDepartureDate() {
+        return departureDate;
+    }
+
+    public String getCommuterLineID() {
+        return commuterLineID;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public List<TimeTableRow> getTimeTableRows() {
+        return timeTableRows;
+    }
+
+    /**
+     * Epoch millis when this update was received from Digitraffic.
+     */
+    public long getReceivedAt() {
+        return receivedAt;
+    }
+
+    /**
+     * Epoch millis of the upstream event behind this update: the latest actual
+     * time, or the receive time when the train has not passed any station yet.
+     */
+    public long getUpdatedAt() {
+        return latestActualRow != null ? latestActualRow.getActualTime() : receivedAt;
+    }
+
+    public TimeTableRow getLatestActualRow() {
+        return latestActualRow;
+    }
+
+    public TimeTableRow getNextEstimateRow() {
+        return nextEstimateRow;
+    }
+
+    /**
+     * The row where passengers board at the station: its departure, or the
+     * arrival at the destination. Null if the train does not stop there.
+     */
+    public TimeTableRow getStationRow(String stationShortCode) {
+        Map<String, TimeTableRow> rows = rowsByStation;
+        if (rows == null) {
+            rows = new HashMap<>(timeTableRows.size());
+            for (int i = 0; i < timeTableRows.size(); i++) {
+                TimeTableRow row = timeTableRows.get(i);
+                TimeTableRow current = rows.get(row.getStationShortCode());
+                // a departure replaces the arrival, the first one wins on trains which pass a station twice
+                if (current == null || "DEPARTURE".equals(row.getType()) && !"DEPARTURE".equals(current.getType())) {
+                    rows.put(row.getStationShortCode(), row);
+                }
+            }
+            rowsByStation = rows;
+        }
+        return rows.get(stationShortCode);
+    }
+}
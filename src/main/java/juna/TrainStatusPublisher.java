@@ -0,0 +1,133 @@
+package juna;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeTypeUtils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Pushes the current status of followed trains to browsers, see
+ * {@link StatusBrokerConfig}. Each update is serialised once and the same
+ * bytes are handed to the broker for every session following the train, and
+ * kept as the latest status for pages which have just been opened until the
+ * train finishes its run or is no longer followed on this node.
+ */
+@Component
+public class TrainStatusPublisher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TrainStatusPublisher.class);
+
+    @Autowired
+    private SimpMessagingTemplate messagingTemplate;
+
+    @Autowired
+    private Juna juna;
+
+    @Autowired
+    private SubscriptionIndex subscriptionIndex;
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    // latest status per trainNumber, bounded by the number of followed trains this node owns
+    private final Map<Integer, byte[]> latest = new ConcurrentHashMap<>();
+
+    private final Counter published;
+
+    @Autowired
+    public TrainStatusPublisher(MeterRegistry meterRegistry) {
+        this.published = meterRegistry.counter("juna.status.updates");
+        meterRegistry.gauge("juna.status.trains", latest, Map::size);
+    }
+
+    @PostConstruct
+    public void start() {
+        subscriptionIndex.addTrainsListener(() -> latest.keySet().retainAll(subscriptionIndex.subscriptionsByTrain().keySet()));
+    }
+
+    /**
+     * Publishes the train's status at the given row, the latest one the train
+     * has passed or null before departure. The status at the last row of the
+     * train is sent but not kept.
+     */
+    public void publish(Train train, TimeTableRow row, int difference, long updatedAt) {
+        byte[] status;
+        try {
+            status = serialise(train, row, difference, updatedAt);
+        } catch (IOException e) {
+            LOGGER.error("Could not serialise status of train {}", train.getTrainNumber(), e);
+            return;
+        }
+        int trainNumber = train.getTrainNumber();
+        if (isLastRow(train, row)) {
+            latest.remove(trainNumber);
+        } else {
+            latest.put(trainNumber, status);
+            // the train may have been dropped by the listener just before the put
+            if (!subscriptionIndex.subscriptionsByTrain().containsKey(trainNumber)) {
+                latest.remove(trainNumber, status);
+            }
+        }
+        SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.create();
+        // the broker only sends binary frames for application/octet-stream, so
+        // JSON goes out in text frames, which browsers read as strings
+        headers.setContentType(MimeTypeUtils.APPLICATION_JSON);
+        headers.setLeaveMutable(true);
+        messagingTemplate.send(StatusBrokerConfig.TRAINS + trainNumber, MessageBuilder.createMessage(status, headers.getMessageHeaders()));
+        published.increment();
+    }
+
+    /**
+     * The latest status of the train, or null if there has been none.
+     */
+    public byte[] getStatus(int trainNumber) {
+        return latest.get(trainNumber);
+    }
+
+    private static boolean isLastRow(Train train, TimeTableRow row) {
+        List<TimeTableRow> rows = train.getTimeTableRows();
+        return row != null && !rows.isEmpty() && rows.get(rows.size() - 1) == row;
+    }
+
+    private byte[] serialise(Train train, TimeTableRow row, int difference, long updatedAt) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        try (JsonGenerator json = jsonFactory.createGenerator(out)) {
+            json.writeStartObject();
+            json.writeNumberField("trainNumber", train.getTrainNumber());
+            json.writeStringField("departureDate", train.getDepartureDate());
+            json.writeStringField("line", train.getCommuterLineID());
+            json.writeBooleanField("cancelled", train.isCancelled());
+            json.writeNumberField("difference", difference);
+            if (row != null) {
+                json.writeStringField("station", row.getStationShortCode());
+                json.writeStringField("stationName", juna.getStationNameByShortCode(row.getStationShortCode()));
+            }
+            TimeTableRow estimate = train.getNextEstimateRow();
+            if (estimate != null) {
+                json.writeStringField("nextStation", estimate.getStationShortCode());
+                json.writeStringField("nextStationName", juna.getStationNameByShortCode(estimate.getStationShortCode()));
+                json.writeNumberField("nextDifference", estimate.getEstimatedDifferenceInMinutes(difference));
+            }
+            json.writeNumberField("updatedAt", updatedAt);
+            json.writeEndObject();
+        }
+        return out.toByteArray();
+    }
+}
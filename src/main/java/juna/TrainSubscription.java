@@ -0,0 +1,94 @@
+package juna;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBAttribute;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBHashKey;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBIndexHashKey;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBRangeKey;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBTable;
+
+/**
+ * One approved user following one train, keyed by trainNumber and email so
+ * that the followers of a train are a single query. Holds every trainId of the
+ * user for the train, e.g. both 8541@PSL and 8541:3@TPE. Derived from
+ * {@link UserInfo#getTrainIds()} by {@link TrainSubscriptionStore}.
+ */
+@DynamoDBTable(tableName = "TrainSubscription")
+public class TrainSubscription {
+
+    public static final String EMAIL_INDEX = "email-index";
+
+    private Integer trainNumber;
+    private String email;
+    private String userId;
+    private List<String> trainIds;
+
+    public TrainSubscription() {
+    }
+
+    public TrainSubscription(Subscription subscription) {
+        this.trainNumber = subscription.getTrainNumber();
+        this.email = subscription.getUserInfo().getEmail();
+        this.userId = subscription.getUserInfo().getId();
+        this.trainIds = new ArrayList<>(1);
+        this.trainIds.add(subscription.getTrainId());
+    }
+
+    @DynamoDBHashKey
+    public Integer getTrainNumber() {
+        return trainNumber;
+    }
+
+    @DynamoDBRangeKey
+    @DynamoDBIndexHashKey(globalSecondaryIndexName = EMAIL_INDEX)
+    public String getEmail() {
+        return email;
+    }
+
+    @DynamoDBAttribute
+    public String getUserId() {
+        return userId;
+    }
+
+    /**
+     * The trainIds of this train as stored in {@link UserInfo#getTrainIds()}.
+     */
+    @DynamoDBAttribute
+    public List<String> getTrainIds() {
+        return trainIds;
+    }
+
+    /**
+     * The subscriptions of this item, with a {@link UserInfo} holding only the
+     * trainIds of this train.
+     */
+    public List<Subscription> toSubscriptions() {
+        UserInfo info = new UserInfo(email);
+        info.setId(userId);
+        info.setApprovalPending("");
+        if (trainIds != null) {
+            info.getTrainIds().addAll(trainIds);
+        }
+        List<Subscription> subscriptions = Subscription.parse(info);
+        subscriptions.removeIf(subscription -> trainNumber == null || subscription.getTrainNumber() != trainNumber);
+        return subscriptions;
+    }
+
+    public void setTrainNumber(Integer trainNumber) {
+        this.trainNumber = trainNumber;
+    }
+
+    public void setEmail(String email) {
+        this.email = email;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public void setTrainIds(List<String> trainIds) {
+        this.trainIds = trainIds;
+    }
+}
@@ -0,0 +1,173 @@
+package juna;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper.FailedBatch;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBQueryExpression;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBScanExpression;
+
+/**
+ * Keeps the TrainSubscription table in line with {@link UserInfo} writes,
+ * called by {@link WriteBehindUserInfoRepository} when it flushes, and reads
+ * it back for {@link SubscriptionIndex}: all of it at startup, and single
+ * trains whose followers have changed on other nodes.
+ * Disabled with juna.storage=local, where {@link SubscriptionIndex} is
+ * the only trainNumber -> subscribers view.
+ */
+@Component
+public class TrainSubscriptionStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TrainSubscriptionStore.class);
+
+    @Autowired(required = false)
+    private AmazonDynamoDB amazonDynamoDB;
+
+    private DynamoDBMapper mapper;
+
+    @PostConstruct
+    public void start() {
+        if (amazonDynamoDB != null) {
+            mapper = new DynamoDBMapper(amazonDynamoDB);
+        }
+    }
+
+    public boolean isEnabled() {
+        return mapper != null;
+    }
+
+    /**
+     * Replaces the subscriptions of the saved users with those of their current
+     * trainIds, or removes them while a user is pending approval, and removes
+     * those of the deleted users. The rows to remove are those of the trainIds
+     * the user had before the write, stored by id, rather than what the
+     * eventually consistent email index happens to return. All changes go out
+     * as one batch write.
+     */
+    public void update(Collection<UserInfo> saved, Collection<UserInfo> deleted, Map<String, UserInfo> stored) {
+        if (mapper == null)
+            return;
+        Map<String, TrainSubscription> saves = new LinkedHashMap<>();
+        Map<String, TrainSubscription> deletes = new LinkedHashMap<>();
+        for (UserInfo info : saved) {
+            if (info.getEmail() != null) {
+                for (TrainSubscription subscription : toSubscriptions(info).values()) {
+                    saves.put(key(subscription), subscription);
+                }
+            }
+            addKeys(deletes, stored.get(info.getId()));
+        }
+        for (UserInfo info : deleted) {
+            addKeys(deletes, info);
+            addKeys(deletes, stored.get(info.getId()));
+        }
+        // DynamoDB rejects a batch with the same key twice
+        deletes.keySet().removeAll(saves.keySet());
+        write(new ArrayList<>(saves.values()), new ArrayList<>(deletes.values()));
+    }
+
+    /**
+     * Followers of the train, one query.
+     */
+    public List<Subscription> findByTrainNumber(int trainNumber) {
+        if (mapper == null)
+            return Collections.emptyList();
+        TrainSubscription key = new TrainSubscription();
+        key.setTrainNumber(trainNumber);
+        return toSubscriptions(mapper.query(TrainSubscription.class, new DynamoDBQueryExpression<TrainSubscription>().withHashKeyValues(key)));
+    }
+
+    /**
+     * Every subscription, one scan, for loading {@link SubscriptionIndex} at
+     * startup.
+     */
+    public List<Subscription> findAll() {
+        if (mapper == null)
+            return Collections.emptyList();
+        return toSubscriptions(mapper.scan(TrainSubscription.class, new DynamoDBScanExpression()));
+    }
+
+    /**
+     * One-off copy of the subscriptions of all approved users from the trainIds
+     * lists of UserInfo.
+     */
+    public void migrate(Iterable<UserInfo> infos) {
+        if (mapper == null)
+            return;
+        long start = System.currentTimeMillis();
+        List<TrainSubscription> subscriptions = new ArrayList<>();
+        Set<String> emails = new HashSet<>();
+        for (UserInfo info : infos) {
+            // DynamoDB rejects a batch with the same key twice
+            if (info.getEmail() != null && emails.add(info.getEmail())) {
+                subscriptions.addAll(toSubscriptions(info).values());
+            }
+        }
+        write(subscriptions, Collections.emptyList());
+        LOGGER.info("Migrated {} subscriptions of {} users in {} ms", subscriptions.size(), emails.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Adds the keys of the rows the user may have, one per train of its
+     * trainIds whether approved or not, as deleting a missing row is harmless.
+     */
+    private static void addKeys(Map<String, TrainSubscription> keys, UserInfo info) {
+        if (info == null || info.getEmail() == null)
+            return;
+        for (Subscription subscription : Subscription.parse(info)) {
+            TrainSubscription key = new TrainSubscription();
+            key.setTrainNumber(subscription.getTrainNumber());
+            key.setEmail(info.getEmail());
+            keys.putIfAbsent(key(key), key);
+        }
+    }
+
+    private static String key(TrainSubscription subscription) {
+        return subscription.getTrainNumber() + ":" + subscription.getEmail();
+    }
+
+    private void write(List<TrainSubscription> saves, List<TrainSubscription> deletes) {
+        if (saves.isEmpty() && deletes.isEmpty())
+            return;
+        for (FailedBatch failed : mapper.batchWrite(saves, deletes)) {
+            LOGGER.error("Could not write subscriptions {}", failed.getUnprocessedItems(), failed.getException());
+        }
+    }
+
+    private static Map<Integer, TrainSubscription> toSubscriptions(UserInfo info) {
+        Map<Integer, TrainSubscription> subscriptions = new LinkedHashMap<>();
+        if (!SubscriptionIndex.isApproved(info))
+            return subscriptions;
+        for (Subscription subscription : Subscription.parse(info)) {
+            // one item per train with all of the user's trainIds for it
+            TrainSubscription existing = subscriptions.putIfAbsent(subscription.getTrainNumber(), new TrainSubscription(subscription));
+            if (existing != null) {
+                existing.getTrainIds().add(subscription.getTrainId());
+            }
+        }
+        return subscriptions;
+    }
+
+    private static List<Subscription> toSubscriptions(Iterable<TrainSubscription> items) {
+        List<Subscription> subscriptions = new ArrayList<>();
+        for (TrainSubscription item : items) {
+            subscriptions.addAll(item.toSubscriptions());
+        }
+        return subscriptions;
+    }
+}
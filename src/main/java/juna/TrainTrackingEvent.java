@@ -0,0 +1,61 @@
+package juna;
+
+/**
+ * A train occupying or releasing a track section at a station, from the
+ * /train-tracking/ stream.
+ */
+public class TrainTrackingEvent {
+
+    public static final String OCCUPY = "OCCUPY";
+    public static final String RELEASE = "RELEASE";
+
+    private final int trainNumber;
+    private final String departureDate;
+    private final String station;
+    private final String type;
+    private final long timestamp;
+    private final long receivedAt;
+
+    public TrainTrackingEvent(int trainNumber, String departureDate, String station, String type, long timestamp, long receivedAt) {
+        this.trainNumber = trainNumber;
+        this.departureDate = departureDate;
+        this.station = station;
+        this.type = type;
+        this.timestamp = timestamp;
+        this.receivedAt = receivedAt;
+    }
+
+    public int getTrainNumber() {
+        return trainNumber;
+    }
+
+    public String getDepartureDate() {
+        return departureDate;
+    }
+
+    public String getStation() {
+        return station;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public boolean isOccupy() {
+        return OCCUPY.equals(type);
+    }
+
+    /**
+     * Epoch millis when the train occupied or released the section.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Epoch millis when this event was received from Digitraffic.
+     */
+    public long getReceivedAt() {
+        return receivedAt;
+    }
+}
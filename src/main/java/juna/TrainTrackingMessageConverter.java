@@ -0,0 +1,158 @@
+package juna;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.AbstractMessageConverter;
+import org.springframework.messaging.converter.MessageConversionException;
+import org.springframework.util.MimeType;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Decodes /train-tracking/ messages into {@link TrainTrackingEvent} arrays.
+ * Like {@link LiveTrainsMessageConverter} it drops the trains nobody follows
+ * as soon as their trainNumber is read, as well as section events outside
+ * stations, which carry nothing to compare with the timetable.
+ */
+public class TrainTrackingMessageConverter extends AbstractMessageConverter {
+
+    private static final DateTimeFormatter TIME_PARSER = ISODateTimeFormat.dateTimeParser();
+
+    private static final TrainTrackingEvent[] NO_EVENTS = new TrainTrackingEvent[0];
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final SubscriptionIndex subscriptionIndex;
+
+    private final Counter received;
+    private final Counter matched;
+    private final Timer decodeTimer;
+
+    public TrainTrackingMessageConverter(SubscriptionIndex subscriptionIndex, MeterRegistry meterRegistry) {
+        super(Arrays.asList(new MimeType("application", "json", StandardCharsets.UTF_8),
+                new MimeType("text", "plain", StandardCharsets.UTF_8)));
+        this.subscriptionIndex = subscriptionIndex;
+        this.received = meterRegistry.counter("juna.traintracking.events", "result", "received");
+        this.matched = meterRegistry.counter("juna.traintracking.events", "result", "matched");
+        this.decodeTimer = meterRegistry.timer("juna.traintracking.decode");
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return TrainTrackingEvent[].class.equals(clazz);
+    }
+
+    @Override
+    protected boolean canConvertTo(Object payload, MessageHeaders headers) {
+        return false;
+    }
+
+    @Override
+    protected Object convertFromInternal(Message<?> message, Class<?> targetClass, Object conversionHint) {
+        Object payload = message.getPayload();
+        long start = System.nanoTime();
+        try (JsonParser parser = payload instanceof byte[] ? jsonFactory.createParser((byte[]) payload)
+                : jsonFactory.createParser(payload.toString())) {
+            return readEvents(parser);
+        } catch (IOException e) {
+            throw new MessageConversionException(message, "Could not read train-tracking message", e);
+        } finally {
+            decodeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private TrainTrackingEvent[] readEvents(JsonParser parser) throws IOException {
+        long receivedAt = System.currentTimeMillis();
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.START_OBJECT) {
+            // the usual case, one event per message
+            TrainTrackingEvent event = readEvent(parser, receivedAt);
+            return event != null ? new TrainTrackingEvent[] { event } : NO_EVENTS;
+        }
+        if (token != JsonToken.START_ARRAY)
+            return NO_EVENTS;
+        List<TrainTrackingEvent> events = new ArrayList<>();
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            TrainTrackingEvent event = readEvent(parser, receivedAt);
+            if (event != null) {
+                events.add(event);
+            }
+        }
+        return events.toArray(NO_EVENTS);
+    }
+
+    private TrainTrackingEvent readEvent(JsonParser parser, long receivedAt) throws IOException {
+        received.increment();
+        int trainNumber = -1;
+        String departureDate = null;
+        String station = null;
+        String type = null;
+        long timestamp = TimeTableRow.NO_TIME;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            switch (field) {
+            case "trainNumber":
+                trainNumber = trainNumber(parser, value);
+                if (trainNumber < 0 || !subscriptionIndex.isSubscribed(trainNumber)) {
+                    skipRemainingFields(parser);
+                    return null;
+                }
+                break;
+            case "departureDate":
+                departureDate = value == JsonToken.VALUE_NULL ? null : parser.getText();
+                break;
+            case "station":
+                station = value == JsonToken.VALUE_NULL ? null : parser.getText().intern();
+                break;
+            case "type":
+                type = value == JsonToken.VALUE_NULL ? null : parser.getText().intern();
+                break;
+            case "timestamp":
+                timestamp = value == JsonToken.VALUE_NULL ? TimeTableRow.NO_TIME : TIME_PARSER.parseMillis(parser.getText());
+                break;
+            default:
+                parser.skipChildren();
+            }
+        }
+        if (trainNumber < 0 || station == null || type == null || timestamp == TimeTableRow.NO_TIME)
+            return null;
+        matched.increment();
+        return new TrainTrackingEvent(trainNumber, departureDate, station, type, timestamp, receivedAt);
+    }
+
+    private static int trainNumber(JsonParser parser, JsonToken value) throws IOException {
+        if (value == JsonToken.VALUE_NUMBER_INT)
+            return parser.getIntValue();
+        if (value == JsonToken.VALUE_STRING) {
+            // the train-tracking schema allows trainNumber as a string
+            try {
+                return Integer.parseInt(parser.getText());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static void skipRemainingFields(JsonParser parser) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            parser.nextToken();
+            parser.skipChildren();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package juna;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Bounded hand-off between the WebSocket thread and train processing. Only
+ * the newest pending update per trainNumber is kept, so a processing stage
+ * that falls behind skips superseded updates instead of working through them
+ * in order. Train-tracking events are coalesced the same way, keeping the
+ * latest position of each train, and handed out after the train updates of the
+ * same batch.
+ */
+public class TrainUpdateQueue {
+
+    private final int capacity;
+
+    // guarded by this, insertion ordered so that the longest waiting train is processed first
+    private final Map<Integer, Pending> pending = new LinkedHashMap<>();
+    private final Map<Integer, TrainTrackingEvent> pendingEvents = new LinkedHashMap<>();
+
+    private final Counter enqueued;
+    private final Counter coalesced;
+    private final Counter dropped;
+    private final Timer lag;
+
+    private static class Pending {
+
+        private Train train;
+        private final long enqueuedNanos;
+
+        public Pending(Train train, long enqueuedNanos) {
+            this.train = train;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    public static class Batch {
+
+        private final List<Train> trains;
+        private final List<TrainTrackingEvent> events;
+
+        private Batch(List<Train> trains, List<TrainTrackingEvent> events) {
+            this.trains = trains;
+            this.events = events;
+        }
+
+        public List<Train> getTrains() {
+            return trains;
+        }
+
+        public List<TrainTrackingEvent> getEvents() {
+            return events;
+        }
+    }
+
+    public TrainUpdateQueue(int capacity, MeterRegistry meterRegistry) {
+        this.capacity = capacity;
+        this.enqueued = meterRegistry.counter("juna.ingest.updates", "result", "enqueued");
+        this.coalesced = meterRegistry.counter("juna.ingest.updates", "result", "coalesced");
+        this.dropped = meterRegistry.counter("juna.ingest.updates", "result", "dropped");
+        this.lag = meterRegistry.timer("juna.ingest.lag");
+        meterRegistry.gauge("juna.ingest.pending", this, TrainUpdateQueue::size);
+    }
+
+    public synchronized boolean offer(Train train) {
+        Pending current = pending.get(train.getTrainNumber());
+        if (current != null) {
+            // the pending entry keeps its original enqueue time so lag covers the whole wait
+            if (train.getVersion() >= current.train.getVersion()) {
+                current.train = train;
+            }
+            coalesced.increment();
+            return true;
+        }
+        if (size() >= capacity) {
+            dropped.increment();
+            return false;
+        }
+        pending.put(train.getTrainNumber(), new Pending(train, System.nanoTime()));
+        enqueued.increment();
+        notifyAll();
+        return true;
+    }
+
+    public synchronized boolean offer(TrainTrackingEvent event) {
+        TrainTrackingEvent current = pendingEvents.get(event.getTrainNumber());
+        if (current != null) {
+            if (event.getTimestamp() >= current.getTimestamp()) {
+                pendingEvents.put(event.getTrainNumber(), event);
+            }
+            coalesced.increment();
+            return true;
+        }
+        if (size() >= capacity) {
+            dropped.increment();
+            return false;
+        }
+        pendingEvents.put(event.getTrainNumber(), event);
+        enqueued.increment();
+        notifyAll();
+        return true;
+    }
+
+    public synchronized Batch take(int max) throws InterruptedException {
+        while (pending.isEmpty() && pendingEvents.isEmpty()) {
+            wait();
+        }
+        long now = System.nanoTime();
+        List<Train> trains = new ArrayList<>(Math.min(max, pending.size()));
+        Iterator<Pending> iterator = pending.values().iterator();
+        while (iterator.hasNext() && trains.size() < max) {
+            Pending next = iterator.next();
+            iterator.remove();
+            lag.record(now - next.enqueuedNanos, TimeUnit.NANOSECONDS);
+            trains.add(next.train);
+        }
+        List<TrainTrackingEvent> events = new ArrayList<>(Math.min(max, pendingEvents.size()));
+        Iterator<TrainTrackingEvent> eventIterator = pendingEvents.values().iterator();
+        while (eventIterator.hasNext() && events.size() < max) {
+            TrainTrackingEvent next = eventIterator.next();
+            eventIterator.remove();
+            lag.record(System.currentTimeMillis() - next.getReceivedAt(), TimeUnit.MILLISECONDS);
+            events.add(next);
+        }
+        return new Batch(trains, events);
+    }
+
+    public synchronized int size() {
+        return pending.size() + pendingEvents.size();
+    }
+}
@@ -1,7 +1,9 @@
 package juna;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
 import javax.validation.Valid;
 
@@ -9,12 +11,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.validation.BindingResult;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
 
 @Controller
@@ -28,8 +34,14 @@ public class TrainsController {
     @Autowired
     private UserInfoRepository repository;
 
+    @Autowired
+    private SubscriptionIndex subscriptionIndex;
+
     @Autowired
     private EmailService emailService;
+
+    @Autowired
+    private TrainStatusPublisher trainStatusPublisher;
     
     @GetMapping("/")
     public String index() {
@@ -73,8 +85,9 @@ public class TrainsController {
         }
 
         repository.save(userInfo);
+        subscriptionIndex.update(userInfo);
         
-        emailService.sendSimpleMessage(userInfo.getEmail(), "Varmenna shkpostiosoite " + userInfo.getEmail(), "Varmenna shkpostiosoitteesi " + userInfo.getEmail() + " klikkaamalla linkki: " + juna.getServername() + "/trains/approve?email=" + userInfo.getEmail() + "&uuid=" + userInfo.getApprovalPending());
+        emailService.sendSimpleMessage(userInfo.getEmail(), "Varmenna sähköpostiosoite " + userInfo.getEmail(), "Varmenna sähköpostiosoitteesi " + userInfo.getEmail() + " klikkaamalla linkkiä: " + juna.getServername() + "/trains/approve?email=" + userInfo.getEmail() + "&uuid=" + userInfo.getApprovalPending());
         
         return "result";
     }
@@ -88,8 +101,9 @@ public class TrainsController {
             LOGGER.info("Approved email {} with uuid {}", email, uuid);
             info.setApprovalPending("");
             repository.save(info);
+            subscriptionIndex.update(info);
             
-            emailService.sendSimpleMessage(info.getEmail(), "Junien seuranta aloitettu " + info.getTrainIds(), info.getEmail() + " on rekisteritynyt seuraamaan junia numeroilla " + info.getTrainIds() + ". Lopeta seuranta seuraavasta linkist: " + juna.getServername() + "/trains/remove?email=" + info.getEmail() + "&trainId=" + info.getTrainIds());
+            emailService.sendSimpleMessage(info.getEmail(), "Junien seuranta aloitettu " + info.getTrainIds(), info.getEmail() + " on rekisteröitynyt seuraamaan junia numeroilla " + info.getTrainIds() + ". Lopeta seuranta seuraavasta linkistä: " + juna.getServername() + "/trains/remove?email=" + info.getEmail() + "&trainId=" + info.getTrainIds());
         }
         model.addAttribute("userInfo", info);
         return "ok";
@@ -107,6 +121,7 @@ public class TrainsController {
         if (info == null)
             throw new ResourceNotFoundException();
         repository.delete(info);
+        subscriptionIndex.remove(info);
         
         LOGGER.info("Removed tracking for user {} for trainIds {}", info.getEmail(), info.getTrainIds());
         emailService.sendSimpleMessage(info.getEmail(), "Seuranta lopetettu junille " + info.getTrainIds(), info.getEmail() + " on lopettanut seuraamasta junia " + info.getTrainIds());
@@ -127,19 +142,46 @@ public class TrainsController {
             }
         }
         repository.save(info);
+        subscriptionIndex.update(info);
         model.addAttribute("userInfo", info);
         return "ok";
     }
     
+    @GetMapping("/trains/status")
+    public String trainsStatus(Model model, @RequestParam(name="email", required=false) String email) {
+        UserInfo info = findByEmail(email);
+        List<Integer> trainNumbers = info == null ? Collections.emptyList()
+                : Subscription.parse(info).stream().map(Subscription::getTrainNumber).distinct().collect(Collectors.toList());
+        model.addAttribute("userInfo", info != null ? info : new UserInfo());
+        model.addAttribute("trainNumbers", trainNumbers);
+        return "status";
+    }
+
+    /**
+     * The latest status pushed for the train, for the status page to show
+     * before the next update arrives over the WebSocket. Like the
+     * /trains/{trainNumber} destinations this is public without an email: the
+     * status comes from the public live-trains feed and says nothing about
+     * who follows the train, only that somebody does.
+     */
+    @GetMapping(value = "/trains/status/{trainNumber}", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public ResponseEntity<byte[]> trainStatus(@PathVariable("trainNumber") int trainNumber) {
+        byte[] status = trainStatusPublisher.getStatus(trainNumber);
+        if (status == null)
+            return ResponseEntity.noContent().build();
+        return ResponseEntity.ok(status);
+    }
+
     private UserInfo findByEmail(String email) {
-        if (email != null) {
-            for (UserInfo possibleInfo : repository.findAll()) {
-                if (possibleInfo != null && email.equals(possibleInfo.getEmail())) {
-                    return possibleInfo;
-                }
-            }
-        }
-        return null;
+        if (email == null || email.isEmpty())
+            return null;
+        List<UserInfo> infos = repository.findByEmail(email);
+        if (infos == null || infos.isEmpty())
+            return null;
+        if (infos.size() > 1)
+            LOGGER.warn("Found {} users with email {}, using the first one", infos.size(), email);
+        return infos.get(0);
     }
 
     @ResponseStatus(value = HttpStatus.NOT_ACCEPTABLE)
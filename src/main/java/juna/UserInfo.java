@@ -12,11 +12,14 @@ import org.hibernate.validator.constraints.NotBlank;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBAttribute;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBAutoGeneratedKey;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBHashKey;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBIndexHashKey;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBTable;
 
 @DynamoDBTable(tableName = "UserInfo")
 public class UserInfo {
 
+    public static final String EMAIL_INDEX = "email-index";
+
     private String id;
 
     @NotNull
@@ -36,6 +39,7 @@ public class UserInfo {
         return id;
     }
 
+    @DynamoDBIndexHashKey(globalSecondaryIndexName = EMAIL_INDEX)
     public String getEmail() {
         return email;
     }
@@ -59,6 +63,13 @@ public class UserInfo {
         this.trainIds = new ArrayList<>();
     }
 
+    public UserInfo(UserInfo other) {
+        this.id = other.id;
+        this.email = other.email;
+        this.trainIds = other.trainIds != null ? new ArrayList<>(other.trainIds) : null;
+        this.approvalPending = other.approvalPending;
+    }
+
     public void setId(String id) {
         this.id = id;
     }
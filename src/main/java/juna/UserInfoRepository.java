@@ -5,8 +5,15 @@ import java.util.List;
 import org.socialsignin.spring.data.dynamodb.repository.EnableScan;
 import org.springframework.data.repository.CrudRepository;
 
-@EnableScan
+/**
+ * Only findAll may scan the UserInfo table; findByEmail queries the email
+ * index and fails instead of falling back to a scan if the index is missing.
+ */
 public interface UserInfoRepository extends CrudRepository<UserInfo, String> {
 
-    List<UserInfo> findById(String email);
+    List<UserInfo> findByEmail(String email);
+
+    @EnableScan
+    @Override
+    Iterable<UserInfo> findAll();
 }
\ No newline at end of file
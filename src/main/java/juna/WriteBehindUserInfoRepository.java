@@ -0,0 +1,393 @@
+package juna;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper.FailedBatch;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperConfig;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperConfig.ConsistentReads;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Write-behind front of the DynamoDB {@link UserInfoRepository}. Saves and
+ * deletes only replace the pending write of the user, keyed by id, and are
+ * flushed every juna.writeBehind.flushMillis with one batch write, together
+ * with the matching {@link TrainSubscriptionStore} changes for the items that
+ * were written. Items DynamoDB did not process are retried on the next flush.
+ * The user as stored before a write, whose subscriptions the write replaces,
+ * is known from the previous write of the user, or else read by id with a
+ * consistent read when flushing.
+ *
+ * Reads see the pending writes, and flushed writes for
+ * juna.writeBehind.retainMillis more so that the eventually consistent email
+ * index has caught up before they are served from DynamoDB again. Ids of new
+ * users are generated on save instead of by DynamoDB.
+ */
+@Component
+@Primary
+@ConditionalOnProperty(name = "juna.storage", havingValue = "dynamodb", matchIfMissing = true)
+public class WriteBehindUserInfoRepository implements UserInfoRepository {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriteBehindUserInfoRepository.class);
+
+    @Autowired
+    @Qualifier("userInfoRepository")
+    private UserInfoRepository repository;
+
+    @Autowired
+    private AmazonDynamoDB amazonDynamoDB;
+
+    @Autowired
+    private TrainSubscriptionStore trainSubscriptionStore;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${juna.writeBehind.flushMillis:500}")
+    private long flushMillis;
+
+    @Value("${juna.writeBehind.retainMillis:10000}")
+    private long retainMillis;
+
+    private final Map<String, PendingWrite> pending = new ConcurrentHashMap<>();
+
+    private DynamoDBMapper mapper;
+    private ScheduledExecutorService flusher;
+
+    private Timer flushTimer;
+    private Counter written;
+    private Counter coalesced;
+    private Counter retried;
+
+    private static class PendingWrite {
+
+        private final UserInfo info;
+        private final boolean deleted;
+        private volatile long flushedAt;
+        // the write this one replaced, until a flush has resolved stored from it
+        private PendingWrite replaced;
+        // the user in DynamoDB before this write, null if none, valid once resolved
+        private UserInfo stored;
+        private boolean resolved;
+
+        public PendingWrite(UserInfo info, boolean deleted, PendingWrite replaced) {
+            this.info = info;
+            this.deleted = deleted;
+            this.replaced = replaced;
+        }
+
+        public boolean isFlushed() {
+            return flushedAt != 0;
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        mapper = new DynamoDBMapper(amazonDynamoDB);
+        flushTimer = meterRegistry.timer("juna.writebehind.flush");
+        written = meterRegistry.counter("juna.writebehind.writes", "result", "written");
+        coalesced = meterRegistry.counter("juna.writebehind.writes", "result", "coalesced");
+        retried = meterRegistry.counter("juna.writebehind.writes", "result", "retried");
+        meterRegistry.gauge("juna.writebehind.pending", pending, p -> p.values().stream().filter(w -> !w.isFlushed()).count());
+
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "userinfo-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+        LOGGER.info("Flushing user writes every {} ms", flushMillis);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        flusher.shutdown();
+        flusher.awaitTermination(30, TimeUnit.SECONDS);
+        flush();
+        long unflushed = pending.values().stream().filter(w -> !w.isFlushed()).count();
+        if (unflushed > 0) {
+            LOGGER.error("Stopping with {} unflushed user writes", unflushed);
+        }
+    }
+
+    private void enqueue(UserInfo info, boolean deleted) {
+        PendingWrite[] previous = new PendingWrite[1];
+        pending.compute(info.getId(), (id, replaced) -> {
+            previous[0] = replaced;
+            return new PendingWrite(info, deleted, replaced);
+        });
+        if (previous[0] != null && !previous[0].isFlushed()) {
+            coalesced.increment();
+        }
+    }
+
+    synchronized void flush() {
+        long now = System.currentTimeMillis();
+        pending.values().removeIf(write -> write.isFlushed() && now - write.flushedAt > retainMillis);
+
+        Map<String, PendingWrite> batch = new LinkedHashMap<>();
+        List<UserInfo> saves = new ArrayList<>();
+        List<UserInfo> deletes = new ArrayList<>();
+        for (Map.Entry<String, PendingWrite> entry : pending.entrySet()) {
+            PendingWrite write = entry.getValue();
+            if (!write.isFlushed()) {
+                batch.put(entry.getKey(), write);
+                (write.deleted ? deletes : saves).add(write.info);
+            }
+        }
+        if (batch.isEmpty())
+            return;
+
+        flushTimer.record(() -> {
+            try {
+                Map<String, UserInfo> stored = trainSubscriptionStore.isEnabled() ? resolveStored(batch) : Collections.<String, UserInfo>emptyMap();
+                for (FailedBatch failed : mapper.batchWrite(saves, deletes)) {
+                    LOGGER.warn("Could not write {} user items, retrying on the next flush", countItems(failed), failed.getException());
+                    for (List<WriteRequest> requests : failed.getUnprocessedItems().values()) {
+                        for (WriteRequest request : requests) {
+                            batch.remove(idOf(request));
+                            retried.increment();
+                        }
+                    }
+                }
+                // the subscriptions of unprocessed items follow once they have been written
+                saves.removeIf(info -> !batch.containsKey(info.getId()));
+                deletes.removeIf(info -> !batch.containsKey(info.getId()));
+                trainSubscriptionStore.update(saves, deletes, stored);
+            } catch (Exception e) {
+                LOGGER.error("Could not flush {} user writes, retrying on the next flush", batch.size(), e);
+                // part of the batch may have been written, so what is stored is read again
+                for (PendingWrite write : batch.values()) {
+                    write.resolved = false;
+                    write.replaced = null;
+                }
+                batch.clear();
+                retried.increment(saves.size() + deletes.size());
+            }
+        });
+
+        long flushedAt = System.currentTimeMillis();
+        for (PendingWrite write : batch.values()) {
+            // a write replaced during the flush stays pending
+            write.flushedAt = flushedAt;
+            write.stored = null;
+        }
+        written.increment(batch.size());
+    }
+
+    /**
+     * The users as stored in DynamoDB before the writes of the batch, by id.
+     * Taken from the writes they replaced where those have been flushed, and
+     * read for the others.
+     */
+    private Map<String, UserInfo> resolveStored(Map<String, PendingWrite> batch) {
+        List<Object> unknown = new ArrayList<>();
+        for (Map.Entry<String, PendingWrite> entry : batch.entrySet()) {
+            if (!resolve(entry.getValue())) {
+                UserInfo key = new UserInfo();
+                key.setId(entry.getKey());
+                unknown.add(key);
+            }
+        }
+        if (!unknown.isEmpty()) {
+            Map<String, UserInfo> loaded = new HashMap<>();
+            DynamoDBMapperConfig consistent = new DynamoDBMapperConfig(ConsistentReads.CONSISTENT);
+            for (List<Object> items : mapper.batchLoad(unknown, consistent).values()) {
+                for (Object item : items) {
+                    loaded.put(((UserInfo) item).getId(), (UserInfo) item);
+                }
+            }
+            for (Object key : unknown) {
+                PendingWrite write = batch.get(((UserInfo) key).getId());
+                write.stored = loaded.get(((UserInfo) key).getId());
+                write.resolved = true;
+            }
+        }
+        Map<String, UserInfo> stored = new HashMap<>();
+        for (Map.Entry<String, PendingWrite> entry : batch.entrySet()) {
+            if (entry.getValue().stored != null) {
+                stored.put(entry.getKey(), entry.getValue().stored);
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Resolves what was stored before the write from the writes it replaced,
+     * returning false if it has to be read.
+     */
+    private static boolean resolve(PendingWrite write) {
+        if (!write.resolved) {
+            PendingWrite replaced = write.replaced;
+            if (replaced == null)
+                return false;
+            if (replaced.isFlushed()) {
+                write.stored = replaced.deleted ? null : replaced.info;
+            } else if (resolve(replaced)) {
+                // never written, so DynamoDB still holds what it replaced
+                write.stored = replaced.stored;
+            } else {
+                return false;
+            }
+            write.resolved = true;
+            write.replaced = null;
+        }
+        return true;
+    }
+
+    private static int countItems(FailedBatch failed) {
+        int count = 0;
+        for (List<WriteRequest> requests : failed.getUnprocessedItems().values()) {
+            count += requests.size();
+        }
+        return count;
+    }
+
+    private static String idOf(WriteRequest request) {
+        Map<String, AttributeValue> key = request.getPutRequest() != null
+                ? request.getPutRequest().getItem()
+                : request.getDeleteRequest().getKey();
+        return key.get("id").getS();
+    }
+
+    @Override
+    public <S extends UserInfo> S save(S entity) {
+        if (entity.getId() == null || entity.getId().isEmpty()) {
+            entity.setId(UUID.randomUUID().toString());
+        }
+        enqueue(new UserInfo(entity), false);
+        return entity;
+    }
+
+    @Override
+    public <S extends UserInfo> Iterable<S> save(Iterable<S> entities) {
+        List<S> saved = new ArrayList<>();
+        for (S entity : entities) {
+            saved.add(save(entity));
+        }
+        return saved;
+    }
+
+    @Override
+    public UserInfo findOne(String id) {
+        PendingWrite write = pending.get(id);
+        if (write != null)
+            return write.deleted ? null : new UserInfo(write.info);
+        return repository.findOne(id);
+    }
+
+    @Override
+    public boolean exists(String id) {
+        PendingWrite write = pending.get(id);
+        if (write != null)
+            return !write.deleted;
+        return repository.exists(id);
+    }
+
+    @Override
+    public Iterable<UserInfo> findAll() {
+        return merge(repository.findAll(), null);
+    }
+
+    @Override
+    public Iterable<UserInfo> findAll(Iterable<String> ids) {
+        List<UserInfo> found = new ArrayList<>();
+        for (String id : ids) {
+            UserInfo info = findOne(id);
+            if (info != null) {
+                found.add(info);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public long count() {
+        long count = 0;
+        for (@SuppressWarnings("unused") UserInfo info : findAll()) {
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public void delete(String id) {
+        UserInfo info = findOne(id);
+        if (info != null) {
+            delete(info);
+        }
+    }
+
+    @Override
+    public void delete(UserInfo entity) {
+        enqueue(new UserInfo(entity), true);
+    }
+
+    @Override
+    public void delete(Iterable<? extends UserInfo> entities) {
+        for (UserInfo entity : entities) {
+            delete(entity);
+        }
+    }
+
+    @Override
+    public void deleteAll() {
+        for (UserInfo info : findAll()) {
+            delete(info);
+        }
+    }
+
+    @Override
+    public List<UserInfo> findByEmail(String email) {
+        return merge(repository.findByEmail(email), email);
+    }
+
+    /**
+     * Overlays the pending writes on items read from DynamoDB, limited to the
+     * given email unless it is null.
+     */
+    private List<UserInfo> merge(Iterable<UserInfo> stored, String email) {
+        List<UserInfo> merged = new ArrayList<>();
+        if (stored != null) {
+            for (UserInfo info : stored) {
+                if (!pending.containsKey(info.getId())) {
+                    merged.add(info);
+                }
+            }
+        }
+        for (PendingWrite write : pending.values()) {
+            if (!write.deleted && (email == null || email.equals(write.info.getEmail()))) {
+                merged.add(new UserInfo(write.info));
+            }
+        }
+        return merged;
+    }
+}
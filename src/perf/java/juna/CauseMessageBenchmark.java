@@ -0,0 +1,50 @@
+package juna;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Resolving cause codes against the sample metadata, from raw codes and from
+ * a decoded {@link Cause}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CauseMessageBenchmark {
+
+    private Juna juna;
+    private List<String> codes;
+    private Cause cause;
+
+    @Setup
+    public void setUp() throws Exception {
+        juna = PerfSupport.juna();
+        codes = Arrays.asList("E", "E2", "E201");
+        cause = new Cause("E", "E2", "E201");
+    }
+
+    @Benchmark
+    public String resolveCauseCodesToHumanMessage() {
+        return juna.resolveCauseCodesToHumanMessage(codes);
+    }
+
+    @Benchmark
+    public String resolveCauseToHumanMessage() {
+        return juna.resolveCauseToHumanMessage(cause);
+    }
+}
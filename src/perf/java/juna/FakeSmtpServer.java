@@ -0,0 +1,127 @@
+package juna;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Minimal SMTP server which accepts every message and hands its header
+ * section to a listener. Enough for JavaMail to deliver to, nothing is stored.
+ */
+public class FakeSmtpServer implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FakeSmtpServer.class);
+
+    private final ServerSocket serverSocket;
+    private final Consumer<String> headersListener;
+    private final ExecutorService connections = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "fake-smtp");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong messages = new AtomicLong();
+    private volatile boolean running = true;
+
+    public FakeSmtpServer(Consumer<String> headersListener) throws IOException {
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        this.headersListener = headersListener;
+        connections.execute(this::accept);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public long getMessages() {
+        return messages.get();
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (running) {
+                    LOGGER.error("Could not accept SMTP connection", e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+                BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+                OutputStream out = s.getOutputStream()) {
+            reply(out, "220 localhost fake SMTP");
+            String line;
+            while ((line = in.readLine()) != null) {
+                String command = line.length() >= 4 ? line.substring(0, 4).toUpperCase(Locale.ROOT) : line.toUpperCase(Locale.ROOT);
+                switch (command) {
+                case "EHLO":
+                case "HELO":
+                    reply(out, "250 localhost");
+                    break;
+                case "DATA":
+                    reply(out, "354 End data with <CR><LF>.<CR><LF>");
+                    readData(in);
+                    messages.incrementAndGet();
+                    reply(out, "250 OK");
+                    break;
+                case "QUIT":
+                    reply(out, "221 Bye");
+                    return;
+                default:
+                    // MAIL, RCPT, RSET and NOOP
+                    reply(out, "250 OK");
+                }
+            }
+        } catch (SocketException e) {
+            // client went away
+        } catch (IOException e) {
+            LOGGER.error("Could not serve SMTP connection", e);
+        }
+    }
+
+    private void readData(BufferedReader in) throws IOException {
+        StringBuilder headers = new StringBuilder();
+        boolean inHeaders = true;
+        String line;
+        while ((line = in.readLine()) != null && !line.equals(".")) {
+            if (inHeaders) {
+                if (line.isEmpty()) {
+                    inHeaders = false;
+                } else {
+                    headers.append(line).append("\r\n");
+                }
+            }
+        }
+        headersListener.accept(headers.toString());
+    }
+
+    private static void reply(OutputStream out, String reply) throws IOException {
+        out.write((reply + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverSocket.close();
+        connections.shutdownNow();
+    }
+}
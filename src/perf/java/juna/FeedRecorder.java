@@ -0,0 +1,82 @@
+package juna;
+
+import java.lang.reflect.Type;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.messaging.converter.SimpleMessageConverter;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandlerAdapter;
+import org.springframework.web.socket.client.jetty.JettyWebSocketClient;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+import org.springframework.web.socket.sockjs.client.SockJsClient;
+import org.springframework.web.socket.sockjs.client.WebSocketTransport;
+
+/**
+ * Records frames from a live-trains feed into a {@link FrameLog} for
+ * {@link ReplayHarness}.
+ *
+ * Usage: FeedRecorder output.frames.gz [seconds] [destination] [url]
+ */
+public class FeedRecorder {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FeedRecorder.class);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: FeedRecorder output.frames.gz [seconds] [destination] [url]");
+            System.exit(1);
+        }
+        Path output = Paths.get(args[0]);
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 600;
+        String destination = args.length > 2 ? args[2] : "/live-trains/";
+        String url = args.length > 3 ? args[3] : "http://rata.digitraffic.fi/api/v1/websockets/";
+
+        WebSocketClient webSocketClient = new WebSocketClient();
+        webSocketClient.getPolicy().setMaxBinaryMessageSize(Integer.MAX_VALUE);
+        webSocketClient.getPolicy().setMaxTextMessageSize(Integer.MAX_VALUE);
+        JettyWebSocketClient jettyClient = new JettyWebSocketClient(webSocketClient);
+        jettyClient.start();
+        WebSocketStompClient stompClient = new WebSocketStompClient(
+                new SockJsClient(Collections.singletonList(new WebSocketTransport(jettyClient))));
+        stompClient.setInboundMessageSizeLimit(Integer.MAX_VALUE);
+        // hands over the raw payload bytes
+        stompClient.setMessageConverter(new SimpleMessageConverter());
+
+        AtomicInteger frames = new AtomicInteger();
+        try (FrameLog.Writer writer = new FrameLog.Writer(output)) {
+            StompSessionHandlerAdapter handler = new StompSessionHandlerAdapter() {
+
+                @Override
+                public Type getPayloadType(StompHeaders headers) {
+                    return byte[].class;
+                }
+
+                @Override
+                public void handleFrame(StompHeaders headers, Object payload) {
+                    try {
+                        writer.write(new FrameLog.Frame(System.currentTimeMillis(), headers.getDestination(), (byte[]) payload));
+                        frames.incrementAndGet();
+                    } catch (Exception e) {
+                        LOGGER.error("Could not record frame", e);
+                    }
+                }
+            };
+            StompSession session = stompClient.connect(url, handler).get(30, TimeUnit.SECONDS);
+            session.subscribe(destination, handler);
+            System.out.println("Recording " + url + destination + " to " + output + " for " + seconds + " seconds");
+            Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+            session.disconnect();
+        } finally {
+            jettyClient.stop();
+        }
+        System.out.println("Recorded " + frames.get() + " frames");
+    }
+}
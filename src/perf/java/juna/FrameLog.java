@@ -0,0 +1,83 @@
+package juna;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzipped log of STOMP frames as they were received: receive time, destination
+ * and the raw payload.
+ */
+public class FrameLog {
+
+    public static class Frame {
+
+        private final long receivedAt;
+        private final String destination;
+        private final byte[] payload;
+
+        public Frame(long receivedAt, String destination, byte[] payload) {
+            this.receivedAt = receivedAt;
+            this.destination = destination;
+            this.payload = payload;
+        }
+
+        public long getReceivedAt() {
+            return receivedAt;
+        }
+
+        public String getDestination() {
+            return destination;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    public static class Writer implements AutoCloseable {
+
+        private final DataOutputStream out;
+
+        public Writer(Path file) throws IOException {
+            this.out = new DataOutputStream(new GZIPOutputStream(Files.newOutputStream(file)));
+        }
+
+        public synchronized void write(Frame frame) throws IOException {
+            out.writeLong(frame.receivedAt);
+            out.writeUTF(frame.destination);
+            out.writeInt(frame.payload.length);
+            out.write(frame.payload);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+    }
+
+    public static List<Frame> read(Path file) throws IOException {
+        List<Frame> frames = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                long receivedAt;
+                try {
+                    receivedAt = in.readLong();
+                } catch (EOFException e) {
+                    return frames;
+                }
+                String destination = in.readUTF();
+                byte[] payload = new byte[in.readInt()];
+                in.readFully(payload);
+                frames.add(new Frame(receivedAt, destination, payload));
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package juna;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link UserInfoRepository} over a map, for running the notifier without
+ * DynamoDB.
+ */
+public class InMemoryUserInfoRepository implements UserInfoRepository {
+
+    private final Map<String, UserInfo> users = new ConcurrentHashMap<>();
+
+    @Override
+    public <S extends UserInfo> S save(S entity) {
+        if (entity.getId() == null || entity.getId().isEmpty()) {
+            entity.setId(UUID.randomUUID().toString());
+        }
+        users.put(entity.getId(), entity);
+        return entity;
+    }
+
+    @Override
+    public <S extends UserInfo> Iterable<S> save(Iterable<S> entities) {
+        List<S> saved = new ArrayList<>();
+        for (S entity : entities) {
+            saved.add(save(entity));
+        }
+        return saved;
+    }
+
+    @Override
+    public UserInfo findOne(String id) {
+        return users.get(id);
+    }
+
+    @Override
+    public boolean exists(String id) {
+        return users.containsKey(id);
+    }
+
+    @Override
+    public Iterable<UserInfo> findAll() {
+        return new ArrayList<>(users.values());
+    }
+
+    @Override
+    public Iterable<UserInfo> findAll(Iterable<String> ids) {
+        List<UserInfo> found = new ArrayList<>();
+        for (String id : ids) {
+            UserInfo info = users.get(id);
+            if (info != null) {
+                found.add(info);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public long count() {
+        return users.size();
+    }
+
+    @Override
+    public void delete(String id) {
+        users.remove(id);
+    }
+
+    @Override
+    public void delete(UserInfo entity) {
+        users.remove(entity.getId());
+    }
+
+    @Override
+    public void delete(Iterable<? extends UserInfo> entities) {
+        for (UserInfo entity : entities) {
+            delete(entity);
+        }
+    }
+
+    @Override
+    public void deleteAll() {
+        users.clear();
+    }
+
+    @Override
+    public List<UserInfo> findByEmail(String email) {
+        List<UserInfo> found = new ArrayList<>();
+        for (UserInfo info : users.values()) {
+            if (email != null && email.equals(info.getEmail())) {
+                found.add(info);
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,74 @@
+package juna;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Finding the followers of every train in a 500 train frame when the users
+ * follow 50 of them: the original interestingTrainIds, which rebuilt the map
+ * from all users for every frame, against {@link SubscriptionIndex}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InterestingTrainsBenchmark {
+
+    private static final int FRAME_TRAINS = 500;
+    private static final int FOLLOWED_TRAINS = 50;
+
+    @Param({ "10", "1000", "100000" })
+    public int subscribers;
+
+    private int[] frameTrainNumbers;
+    private List<UserInfo> users;
+    private SubscriptionIndex subscriptionIndex;
+
+    @Setup
+    public void setUp() {
+        frameTrainNumbers = new int[FRAME_TRAINS];
+        for (int i = 0; i < FRAME_TRAINS; i++) {
+            frameTrainNumbers[i] = LiveTrainsFixture.FIRST_TRAIN_NUMBER + i;
+        }
+        int[] followed = new int[FOLLOWED_TRAINS];
+        for (int i = 0; i < FOLLOWED_TRAINS; i++) {
+            followed[i] = frameTrainNumbers[i * (FRAME_TRAINS / FOLLOWED_TRAINS)];
+        }
+        users = PerfSupport.users(subscribers, followed);
+        subscriptionIndex = new SubscriptionIndex();
+        subscriptionIndex.load(users);
+    }
+
+    @Benchmark
+    public void legacyInterestingTrainIds(Blackhole blackhole) {
+        Map<Integer, List<Subscription>> interesting = LegacyBaseline.interestingTrainIds(users);
+        for (int trainNumber : frameTrainNumbers) {
+            blackhole.consume(interesting.get(trainNumber));
+        }
+    }
+
+    @Benchmark
+    public void subscriptionIndex(Blackhole blackhole) {
+        for (int trainNumber : frameTrainNumbers) {
+            if (subscriptionIndex.isSubscribed(trainNumber)) {
+                blackhole.consume(subscriptionIndex.subscriptions(trainNumber));
+            }
+        }
+    }
+}
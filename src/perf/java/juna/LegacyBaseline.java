@@ -0,0 +1,92 @@
+package juna;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+
+/**
+ * The original Map based implementations of the hot path, kept as baselines
+ * for the benchmarks.
+ */
+public class LegacyBaseline {
+
+    /**
+     * Rebuilt from every user on every frame.
+     */
+    public static Map<Integer, List<Subscription>> interestingTrainIds(Iterable<UserInfo> info) {
+        Map<Integer, List<Subscription>> interesting = new HashMap<>();
+        if (info != null) {
+            Iterator<UserInfo> infoo = info.iterator();
+            while (infoo.hasNext()) {
+                UserInfo i = infoo.next();
+                if (i.getApprovalPending() == null || i.getApprovalPending().isEmpty()) {
+                    for (String trid : i.getTrainIds()) {
+                        try {
+                            int defaultDifference = 5;
+                            int trainId;
+                            String[] parts = trid.split(":");
+                            if (parts.length == 1) {
+                                // no difference specified
+                                trainId = Integer.parseInt(parts[0]);
+                            } else {
+                                trainId = Integer.parseInt(parts[0]);
+                                defaultDifference = Integer.parseInt(parts[1]);
+                            }
+                            List<Subscription> infos = interesting.get(trainId);
+                            if (infos == null) {
+                                infos = new ArrayList<>();
+                                interesting.put(trainId, infos);
+                            }
+                            infos.add(new Subscription(trid, trainId, defaultDifference, i));
+                        } catch (Exception e) {
+                            // ignored in the baseline
+                        }
+                    }
+                }
+            }
+        }
+        return interesting;
+    }
+
+    /**
+     * Parses both timestamps again on every comparison.
+     */
+    public static List<Map<String, Object>> getLatestTimeTableRow(List<Map<String, Object>> timeTableRows) {
+        Map<String, Object> latestTimeTableRow = null;
+        Map<String, Object> nextEstimatedTimeTableRow = null;
+        for (Map<String, Object> ttr : timeTableRows) {
+            Object actualTime = ttr.get("actualTime");
+            Object liveEstimateTime = ttr.get("liveEstimateTime");
+            if (actualTime != null) {
+                if (latestTimeTableRow == null) {
+                    latestTimeTableRow = ttr;
+                } else {
+                    DateTime dtActualTiem = DateTime.parse((String)actualTime);
+                    DateTime currentActualTime = DateTime.parse((String) latestTimeTableRow.get("actualTime"));
+                    if (dtActualTiem.isAfter(currentActualTime)) {
+                        latestTimeTableRow = ttr;
+                    }
+                }
+            }
+            if (liveEstimateTime != null) {
+                if (nextEstimatedTimeTableRow == null) {
+                    nextEstimatedTimeTableRow = ttr;
+                } else {
+                    DateTime dtLiveEstimate = DateTime.parse((String)liveEstimateTime);
+                    DateTime nextEstimateTime= DateTime.parse((String) nextEstimatedTimeTableRow.get("liveEstimateTime"));
+                    if (nextEstimateTime.isAfter(dtLiveEstimate)) {
+                        nextEstimatedTimeTableRow = ttr;
+                    }
+                }
+            }
+        }
+        List<Map<String, Object>> ttrPair = new ArrayList<>();
+        ttrPair.add(latestTimeTableRow);
+        ttrPair.add(nextEstimatedTimeTableRow);
+        return ttrPair;
+    }
+}
@@ -0,0 +1,76 @@
+package juna;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.messaging.support.GenericMessage;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import juna.JunaNotifier.MyStompSessionHandler;
+import juna.PerfSupport.CountingAlertDigest;
+
+/**
+ * A whole /live-trains/ frame from bytes to rendered alerts: decoding, matching
+ * against the subscription index, notification state and rendering. Every
+ * invocation carries a new version and the delay cycles so that alerts keep
+ * being produced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LiveTrainsBenchmark {
+
+    private static final int[] DELAYS = { 0, 4, 8, 12, 16, 20, 24, 28, 32, 36, 40 };
+
+    @Param({ "1", "50", "500" })
+    public int trains;
+
+    @Param({ "10", "1000", "100000" })
+    public int subscribers;
+
+    // juna.processing.threads, e.g. -p threads=1,2,4,8 to see how a frame scales over the cores
+    @Param({ "1" })
+    public int threads;
+
+    private LiveTrainsFixture fixture;
+    private LiveTrainsMessageConverter converter;
+    private MyStompSessionHandler handler;
+    private CountingAlertDigest alertDigest;
+    private long version;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = LiveTrainsFixture.create(trains);
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        SubscriptionIndex subscriptionIndex = new SubscriptionIndex();
+        subscriptionIndex.load(PerfSupport.users(subscribers, fixture.getTrainNumbers()));
+        converter = new LiveTrainsMessageConverter(subscriptionIndex, meterRegistry);
+        alertDigest = new CountingAlertDigest();
+        handler = new MyStompSessionHandler(subscriptionIndex, new NotificationState(10, 2, subscribers * 2), alertDigest,
+                PerfSupport.renderer(PerfSupport.juna()), meterRegistry, 200, new TrainUpdateQueue(10000, meterRegistry), threads, false);
+    }
+
+    @Benchmark
+    public long handleLiveTrains() {
+        version++;
+        byte[] frame = fixture.frame(version, DELAYS[(int) (version % DELAYS.length)]);
+        Train[] decoded = (Train[]) converter.fromMessage(new GenericMessage<>(frame), Train[].class);
+        handler.handleLiveTrains(Arrays.asList(decoded));
+        return alertDigest.getAlerts();
+    }
+}
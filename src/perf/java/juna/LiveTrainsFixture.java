@@ -0,0 +1,126 @@
+package juna;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * /live-trains/ frames of a given size built from the trains in
+ * fixtures/live-trains-sample.json. The sample is synthetic: five commuter and
+ * long-distance trains written in the shape of the live-trains API, not a
+ * recording of the feed. The trains are renumbered and dated today, and the
+ * version and the delay of the passed stations are written in place so that
+ * every frame can be made to look like a fresh update without re-serialising
+ * it.
+ */
+public class LiveTrainsFixture {
+
+    public static final int FIRST_TRAIN_NUMBER = 10000;
+
+    private static final long VERSION_SENTINEL = 987654321012345L;
+    private static final int DELAY_SENTINEL = 9797;
+    private static final int VERSION_WIDTH = String.valueOf(VERSION_SENTINEL).length();
+    private static final int DELAY_WIDTH = String.valueOf(DELAY_SENTINEL).length();
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final byte[] payload;
+    private final int[] trainNumbers;
+    private final int[] versionOffsets;
+    private final int[] delayOffsets;
+
+    private LiveTrainsFixture(byte[] payload, int[] trainNumbers) {
+        this.payload = payload;
+        this.trainNumbers = trainNumbers;
+        this.versionOffsets = offsets(payload, "\"version\":" + VERSION_SENTINEL, VERSION_WIDTH);
+        this.delayOffsets = offsets(payload, "\"differenceInMinutes\":" + DELAY_SENTINEL, DELAY_WIDTH);
+    }
+
+    public static LiveTrainsFixture create(int trains) throws IOException {
+        List<Map<String, Object>> samples = read("fixtures/live-trains-sample.json", List.class);
+        String today = LocalDate.now(ZoneId.of("Europe/Helsinki")).toString();
+        List<Map<String, Object>> frame = new ArrayList<>(trains);
+        int[] trainNumbers = new int[trains];
+        for (int i = 0; i < trains; i++) {
+            Map<String, Object> train = new LinkedHashMap<>(samples.get(i % samples.size()));
+            trainNumbers[i] = FIRST_TRAIN_NUMBER + i;
+            train.put("trainNumber", trainNumbers[i]);
+            train.put("departureDate", today);
+            train.put("version", VERSION_SENTINEL);
+            List<Map<String, Object>> rows = new ArrayList<>();
+            for (Map<String, Object> sampleRow : (List<Map<String, Object>>) train.get("timeTableRows")) {
+                Map<String, Object> row = new LinkedHashMap<>(sampleRow);
+                if (row.get("actualTime") != null) {
+                    row.put("differenceInMinutes", DELAY_SENTINEL);
+                }
+                rows.add(row);
+            }
+            train.put("timeTableRows", rows);
+            frame.add(train);
+        }
+        return new LiveTrainsFixture(OBJECT_MAPPER.writeValueAsBytes(frame), trainNumbers);
+    }
+
+    public static <T> T read(String resource, Class<T> type) throws IOException {
+        try (InputStream in = LiveTrainsFixture.class.getClassLoader().getResourceAsStream(resource)) {
+            if (in == null)
+                throw new IOException("Missing fixture " + resource);
+            return OBJECT_MAPPER.readValue(in, type);
+        }
+    }
+
+    public int[] getTrainNumbers() {
+        return trainNumbers;
+    }
+
+    /**
+     * Returns the shared payload with the given version and delay written into
+     * every train. The returned array is overwritten by the next call.
+     */
+    public byte[] frame(long version, int delay) {
+        for (int offset : versionOffsets) {
+            write(offset, VERSION_WIDTH, version);
+        }
+        for (int offset : delayOffsets) {
+            write(offset, DELAY_WIDTH, delay);
+        }
+        return payload;
+    }
+
+    private void write(int offset, int width, long value) {
+        // right aligned and padded with whitespace, which JSON allows between tokens
+        String digits = String.valueOf(value);
+        if (digits.length() > width)
+            throw new IllegalArgumentException(value + " does not fit in " + width + " digits");
+        int padding = width - digits.length();
+        for (int i = 0; i < width; i++) {
+            payload[offset + i] = i < padding ? (byte) ' ' : (byte) digits.charAt(i - padding);
+        }
+    }
+
+    private static int[] offsets(byte[] payload, String field, int width) {
+        byte[] pattern = field.getBytes(StandardCharsets.UTF_8);
+        List<Integer> offsets = new ArrayList<>();
+        outer:
+        for (int i = 0; i <= payload.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (payload[i + j] != pattern[j])
+                    continue outer;
+            }
+            offsets.add(i + pattern.length - width);
+        }
+        int[] result = new int[offsets.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = offsets.get(i);
+        }
+        return result;
+    }
+}
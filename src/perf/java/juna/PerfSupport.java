@@ -0,0 +1,78 @@
+package juna;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * Wiring of the notifier components outside of Spring for benchmarks and the
+ * replay harness.
+ */
+public class PerfSupport {
+
+    /**
+     * Discards alerts, counting them so that the work cannot be optimised away.
+     */
+    public static class CountingAlertDigest extends AlertDigest {
+
+        private long alerts;
+        private long characters;
+
+        @Override
+        public void sendAlert(String to, String subject, String text, long eventTime) {
+            alerts++;
+            characters += subject.length() + text.length();
+        }
+
+        public long getAlerts() {
+            return alerts;
+        }
+
+        public long getCharacters() {
+            return characters;
+        }
+    }
+
+    public static Juna juna() throws IOException {
+        Juna juna = new Juna("http://localhost:8080", "juna@localhost");
+        Map<String, List<Map<String, Object>>> metadata = LiveTrainsFixture.read("fixtures/metadata-sample.json", Map.class);
+        juna.setMetadata(metadata.get("stations"), metadata.get("cause-category-codes"),
+                metadata.get("detailed-cause-category-codes"), metadata.get("third-cause-category-codes"));
+        return juna;
+    }
+
+    public static NotificationRenderer renderer(Juna juna) throws IOException {
+        NotificationRenderer renderer = new NotificationRenderer();
+        inject(renderer, "juna", juna);
+        renderer.start();
+        return renderer;
+    }
+
+    /**
+     * Approved users spread evenly over the given trains, each following one
+     * train with a threshold between 1 and 10 minutes.
+     */
+    public static List<UserInfo> users(int count, int[] trainNumbers) {
+        List<UserInfo> users = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            UserInfo info = new UserInfo();
+            info.setId("user-" + i);
+            info.setEmail("user" + i + "@example.com");
+            info.setApprovalPending("");
+            info.setTrainIds(new ArrayList<>(Arrays.asList(trainNumbers[i % trainNumbers.length] + ":" + (1 + i % 10))));
+            users.add(info);
+        }
+        return users;
+    }
+
+    public static void inject(Object target, String fieldName, Object value) {
+        Field field = ReflectionUtils.findField(target.getClass(), fieldName);
+        ReflectionUtils.makeAccessible(field);
+        ReflectionUtils.setField(field, target, value);
+    }
+}
@@ -0,0 +1,359 @@
+package juna;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.mail.internet.MimeUtility;
+
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.web.socket.client.jetty.JettyWebSocketClient;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+import org.springframework.web.socket.sockjs.client.SockJsClient;
+import org.springframework.web.socket.sockjs.client.WebSocketTransport;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import juna.JunaNotifier.MyStompSessionHandler;
+
+/**
+ * Runs the notifier pipeline against a local {@link ReplayServer}, a
+ * {@link FakeSmtpServer} and an in-memory repository, and reports sustained
+ * frames per second, peak heap and the latency from publishing a frame to its
+ * alert reaching SMTP.
+ *
+ * Frames come either from a {@link FeedRecorder} recording, replayed with its
+ * original spacing divided by --speed, or are generated from the synthetic
+ * sample fixture at --rate frames per second. The report says which, as
+ * results from the fixture say nothing about the sizes and update rates of
+ * the real feed:
+ *
+ * ReplayHarness [--recording file.frames.gz --speed 10] [--trains 500 --rate 1 --seconds 60]
+ *     [--subscribers 10000] [--nodes 1] [--threads 1] [--drainSeconds 60]
+ *
+ * With --nodes above 1 the trains are sharded over that many notifier
+ * instances, each with its own context, as separate deployments would be.
+ *
+ * The pipeline follows the /live-trains/ firehose, so all frames are published
+ * there. Latency is measured from the latest frame carrying the alerted train,
+ * which under a backlog slightly understates it.
+ */
+public class ReplayHarness {
+
+    private static final Pattern TRAIN_NUMBER = Pattern.compile("\\((\\d+)\\)");
+    private static final int[] DELAYS = { 0, 4, 8, 12, 16, 20, 24, 28, 32, 36, 40 };
+
+    @Configuration
+    @Import({ EmailServiceImpl.class, AlertDigest.class, NotificationRenderer.class, NotificationState.class, SubscriptionIndex.class,
+            InMemoryClusterMembership.class, ShardAssignment.class, TrainSubscriptionStore.class })
+    public static class PipelineConfig {
+
+        @Bean
+        public static PropertySourcesPlaceholderConfigurer propertySourcesPlaceholderConfigurer() {
+            return new PropertySourcesPlaceholderConfigurer();
+        }
+
+        @Bean
+        public Juna juna() throws Exception {
+            return PerfSupport.juna();
+        }
+
+        @Bean
+        public JavaMailSender javaMailSender(FakeSmtpServer smtpServer) {
+            JavaMailSenderImpl mailSender = new JavaMailSenderImpl();
+            mailSender.setHost("localhost");
+            mailSender.setPort(smtpServer.getPort());
+            return mailSender;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = options(args);
+        int subscribers = Integer.parseInt(options.getOrDefault("subscribers", "10000"));
+        long drainSeconds = Long.parseLong(options.getOrDefault("drainSeconds", "60"));
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        meterRegistry.config().meterFilter(new MeterFilter() {
+            @Override
+            public DistributionStatisticConfig configure(Meter.Id id, DistributionStatisticConfig config) {
+                return DistributionStatisticConfig.builder().percentiles(0.5, 0.99).build().merge(config);
+            }
+        });
+        Timer latency = meterRegistry.timer("replay.latency");
+        Map<Integer, Long> publishedAt = new ConcurrentHashMap<>();
+
+        List<FrameLog.Frame> recording = null;
+        LiveTrainsFixture fixture = null;
+        Set<Integer> trainNumbers = new LinkedHashSet<>();
+        if (options.containsKey("recording")) {
+            recording = FrameLog.read(Paths.get(options.get("recording")));
+            for (FrameLog.Frame frame : recording) {
+                trainNumbers.addAll(trainNumbers(frame.getPayload()));
+            }
+        } else {
+            fixture = LiveTrainsFixture.create(Integer.parseInt(options.getOrDefault("trains", "500")));
+            for (int trainNumber : fixture.getTrainNumbers()) {
+                trainNumbers.add(trainNumber);
+            }
+        }
+        int[] followed = trainNumbers.stream().mapToInt(Integer::intValue).toArray();
+
+        int nodeCount = Integer.parseInt(options.getOrDefault("nodes", "1"));
+        int threads = Integer.parseInt(options.getOrDefault("threads", "1"));
+        List<Node> nodes = new ArrayList<>();
+        try (FakeSmtpServer smtpServer = new FakeSmtpServer(headers -> {
+                    Integer trainNumber = alertedTrain(headers);
+                    Long published = trainNumber != null ? publishedAt.get(trainNumber) : null;
+                    if (published != null) {
+                        latency.record(System.nanoTime() - published, TimeUnit.NANOSECONDS);
+                    }
+                });
+                ReplayServer replayServer = new ReplayServer()) {
+            replayServer.start();
+            InMemoryUserInfoRepository repository = new InMemoryUserInfoRepository();
+            repository.save(PerfSupport.users(subscribers, followed));
+
+            // all nodes join before loading so that each loads its final shard
+            for (int i = 0; i < nodeCount; i++) {
+                nodes.add(new Node("node-" + i, smtpServer, repository, threads));
+            }
+            for (Node node : nodes) {
+                node.connect(replayServer.getUrl());
+            }
+            // let the firehose subscriptions reach the broker
+            Thread.sleep(1000);
+
+            resetPeakUsage();
+            long start = System.nanoTime();
+            long published = 0;
+            if (recording != null) {
+                double speed = Double.parseDouble(options.getOrDefault("speed", "1"));
+                long firstReceived = recording.isEmpty() ? 0 : recording.get(0).getReceivedAt();
+                for (FrameLog.Frame frame : recording) {
+                    sleepUntil(start + (long) (TimeUnit.MILLISECONDS.toNanos(frame.getReceivedAt() - firstReceived) / speed));
+                    publish(replayServer, frame.getPayload(), trainNumbers(frame.getPayload()), publishedAt);
+                    published++;
+                }
+            } else {
+                double rate = Double.parseDouble(options.getOrDefault("rate", "1"));
+                long seconds = Long.parseLong(options.getOrDefault("seconds", "60"));
+                long frames = (long) (rate * seconds);
+                List<Integer> numbers = new ArrayList<>(trainNumbers);
+                for (long version = 1; version <= frames; version++) {
+                    sleepUntil(start + (long) (TimeUnit.SECONDS.toNanos(version - 1) / rate));
+                    byte[] payload = fixture.frame(version, DELAYS[(int) (version % DELAYS.length)]).clone();
+                    publish(replayServer, payload, numbers, publishedAt);
+                    published++;
+                }
+            }
+            long publishedNanos = System.nanoTime() - start;
+            drain(nodes, published, drainSeconds);
+            long elapsedNanos = System.nanoTime() - start;
+
+            for (Node node : nodes) {
+                node.close();
+            }
+            String frames = recording != null ? "recording " + options.get("recording") : "synthetic fixture";
+            report(frames, nodes, latency, smtpServer, published, publishedNanos, elapsedNanos);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * One notifier instance: its own context, shard of the trains, handler and
+     * feed connection, with meters of its own.
+     */
+    private static class Node implements AutoCloseable {
+
+        private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        private final AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        private final JettyWebSocketClient jettyClient;
+        private final SubscriptionIndex subscriptionIndex;
+        private final MyStompSessionHandler sessionHandler;
+        private StompSession session;
+
+        public Node(String nodeId, FakeSmtpServer smtpServer, UserInfoRepository repository, int threads) throws Exception {
+            Map<String, Object> properties = new HashMap<>();
+            properties.put("juna.cluster.group", "replay");
+            properties.put("juna.cluster.nodeId", nodeId);
+            context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("replay", properties));
+            context.getBeanFactory().registerSingleton("smtpServer", smtpServer);
+            context.getBeanFactory().registerSingleton("meterRegistry", meterRegistry);
+            context.getBeanFactory().registerSingleton("userInfoRepository", repository);
+            context.register(PipelineConfig.class);
+            context.refresh();
+
+            subscriptionIndex = context.getBean(SubscriptionIndex.class);
+            subscriptionIndex.load(repository.findAll());
+            TrainUpdateQueue updateQueue = new TrainUpdateQueue(10000, meterRegistry);
+            sessionHandler = new MyStompSessionHandler(subscriptionIndex, context.getBean(NotificationState.class),
+                    context.getBean(AlertDigest.class), context.getBean(NotificationRenderer.class), meterRegistry, 0, updateQueue, threads, false);
+            sessionHandler.startProcessing();
+
+            WebSocketClient webSocketClient = new WebSocketClient();
+            webSocketClient.getPolicy().setMaxTextMessageSize(Integer.MAX_VALUE);
+            jettyClient = new JettyWebSocketClient(webSocketClient);
+            jettyClient.start();
+        }
+
+        public void connect(String url) throws Exception {
+            WebSocketStompClient stompClient = new WebSocketStompClient(
+                    new SockJsClient(Collections.singletonList(new WebSocketTransport(jettyClient))));
+            stompClient.setInboundMessageSizeLimit(Integer.MAX_VALUE);
+            stompClient.setMessageConverter(new LiveTrainsMessageConverter(subscriptionIndex, meterRegistry));
+            session = stompClient.connect(url, sessionHandler).get(30, TimeUnit.SECONDS);
+        }
+
+        public double count(String name, String... tags) {
+            return meterRegistry.counter(name, tags).count();
+        }
+
+        public boolean isIdle(long published) {
+            return meterRegistry.timer("juna.livetrains.frame.decode").count() >= published
+                    && gauge("juna.ingest.pending") == 0 && gauge("juna.email.queue") == 0;
+        }
+
+        private double gauge(String name) {
+            return meterRegistry.find(name).gauge() != null ? meterRegistry.find(name).gauge().value() : 0;
+        }
+
+        @Override
+        public void close() throws Exception {
+            if (session != null) {
+                session.disconnect();
+            }
+            jettyClient.stop();
+            context.close();
+        }
+    }
+
+    private static void publish(ReplayServer replayServer, byte[] payload, List<Integer> trainNumbers, Map<Integer, Long> publishedAt) {
+        long now = System.nanoTime();
+        for (Integer trainNumber : trainNumbers) {
+            publishedAt.put(trainNumber, now);
+        }
+        replayServer.publish("/live-trains/", payload);
+    }
+
+    private static void drain(List<Node> nodes, long published, long drainSeconds) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(drainSeconds);
+        int idle = 0;
+        while (System.nanoTime() < deadline && idle < 10) {
+            Thread.sleep(100);
+            idle = nodes.stream().allMatch(node -> node.isIdle(published)) ? idle + 1 : 0;
+        }
+    }
+
+    private static void report(String frames, List<Node> nodes, Timer latency, FakeSmtpServer smtpServer, long published,
+            long publishedNanos, long elapsedNanos) {
+        double elapsedSeconds = elapsedNanos / 1e9;
+        System.out.printf("frames from:           %s%n", frames);
+        System.out.printf("nodes:                 %d%n", nodes.size());
+        System.out.printf("frames published:      %d (%.1f/s)%n", published, published / (publishedNanos / 1e9));
+        long decoded = nodes.get(0).meterRegistry.timer("juna.livetrains.frame.decode").count();
+        System.out.printf("frames processed:      %d per node (%.1f/s sustained)%n", decoded, decoded / elapsedSeconds);
+        for (Node node : nodes) {
+            System.out.printf("trains processed:      %.0f%n", node.count("juna.livetrains.trains", "result", "processed"));
+        }
+        System.out.printf("emails delivered:      %d (%.1f/s)%n", smtpServer.getMessages(), smtpServer.getMessages() / elapsedSeconds);
+        System.out.printf("emails failed/dropped: %.0f/%.0f%n", nodes.stream().mapToDouble(n -> n.count("juna.email.messages", "result", "failed")).sum(),
+                nodes.stream().mapToDouble(n -> n.count("juna.email.messages", "result", "dropped")).sum());
+        for (ValueAtPercentile percentile : latency.takeSnapshot().percentileValues()) {
+            System.out.printf("latency p%-3.0f         %.1f ms%n", percentile.percentile() * 100, percentile.value(TimeUnit.MILLISECONDS));
+        }
+        System.out.printf("latency max            %.1f ms%n", latency.max(TimeUnit.MILLISECONDS));
+        System.out.printf("peak heap:             %d MB%n", peakHeapUsage() / (1024 * 1024));
+    }
+
+    private static void resetPeakUsage() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+    }
+
+    private static long peakHeapUsage() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static void sleepUntil(long nanoTime) throws InterruptedException {
+        long wait = nanoTime - System.nanoTime();
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    private static Integer alertedTrain(String headers) {
+        // folded header lines continue with whitespace
+        for (String header : headers.replaceAll("\r\n[ \t]+", " ").split("\r\n")) {
+            if (header.regionMatches(true, 0, "Subject:", 0, 8)) {
+                try {
+                    Matcher matcher = TRAIN_NUMBER.matcher(MimeUtility.decodeText(header.substring(8).trim()));
+                    return matcher.find() ? Integer.valueOf(matcher.group(1)) : null;
+                } catch (Exception e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static List<Integer> trainNumbers(byte[] payload) throws Exception {
+        List<Integer> trainNumbers = new ArrayList<>();
+        try (JsonParser parser = new JsonFactory().createParser(payload)) {
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                if (token == JsonToken.FIELD_NAME && "trainNumber".equals(parser.getCurrentName())
+                        && parser.nextToken() == JsonToken.VALUE_NUMBER_INT) {
+                    trainNumbers.add(parser.getIntValue());
+                }
+            }
+        }
+        return trainNumbers;
+    }
+
+    private static Map<String, String> options(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--"))
+                throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+}
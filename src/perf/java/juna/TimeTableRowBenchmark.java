@@ -0,0 +1,74 @@
+package juna;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.messaging.support.GenericMessage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Latest actual and next estimated row of every train in the sample frame:
+ * the original getLatestTimeTableRow over Jackson maps against the single pass
+ * over pre-parsed rows done when a {@link Train} is built.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TimeTableRowBenchmark {
+
+    private List<List<Map<String, Object>>> legacyRows;
+    private List<Train> trains;
+
+    @Setup
+    public void setUp() throws Exception {
+        LiveTrainsFixture fixture = LiveTrainsFixture.create(5);
+        byte[] frame = fixture.frame(1, 7);
+
+        legacyRows = new ArrayList<>();
+        for (Map<String, Object> train : (List<Map<String, Object>>) new ObjectMapper().readValue(frame, List.class)) {
+            legacyRows.add((List<Map<String, Object>>) train.get("timeTableRows"));
+        }
+
+        SubscriptionIndex subscriptionIndex = new SubscriptionIndex();
+        subscriptionIndex.load(PerfSupport.users(5, fixture.getTrainNumbers()));
+        LiveTrainsMessageConverter converter = new LiveTrainsMessageConverter(subscriptionIndex, new SimpleMeterRegistry());
+        trains = Arrays.asList((Train[]) converter.fromMessage(new GenericMessage<>(frame), Train[].class));
+    }
+
+    @Benchmark
+    public void legacyGetLatestTimeTableRow(Blackhole blackhole) {
+        for (List<Map<String, Object>> rows : legacyRows) {
+            blackhole.consume(LegacyBaseline.getLatestTimeTableRow(rows));
+        }
+    }
+
+    @Benchmark
+    public void train(Blackhole blackhole) {
+        for (Train train : trains) {
+            Train copy = new Train(train.getTrainNumber(), train.getDepartureDate(), train.getCommuterLineID(),
+                    train.isCancelled(), train.getVersion(), train.getTimeTableRows(), train.getReceivedAt());
+            blackhole.consume(copy.getLatestActualRow());
+            blackhole.consume(copy.getNextEstimateRow());
+        }
+    }
+}
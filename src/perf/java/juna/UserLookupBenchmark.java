@@ -0,0 +1,117 @@
+package juna;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.socialsignin.spring.data.dynamodb.core.DynamoDBTemplate;
+import org.socialsignin.spring.data.dynamodb.repository.support.DynamoDBRepositoryFactory;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperConfig;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperConfig.TableNameOverride;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBScanExpression;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndex;
+import com.amazonaws.services.dynamodbv2.model.Projection;
+import com.amazonaws.services.dynamodbv2.model.ProjectionType;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
+import com.amazonaws.services.dynamodbv2.util.TableUtils;
+
+/**
+ * Finding a user by email in DynamoDB: {@link UserInfoRepository#findByEmail}
+ * querying the email index against the table scan it used to fall back to.
+ * Needs a DynamoDB, such as DynamoDB Local, at amazon.dynamodb.endpoint; the
+ * users are written to a Benchmark-UserInfo table which is recreated for
+ * every trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserLookupBenchmark {
+
+    private static final int[] TRAIN_NUMBERS = { 8452, 8541, 9621 };
+
+    @Param({ "1000", "10000", "100000" })
+    public int users;
+
+    private AmazonDynamoDBClient amazonDynamoDB;
+    private DynamoDBMapper mapper;
+    private UserInfoRepository repository;
+    private String tableName;
+    private int next;
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        amazonDynamoDB = new AmazonDynamoDBClient(new AWSStaticCredentialsProvider(new BasicAWSCredentials(
+                System.getProperty("amazon.aws.accesskey", "benchmark"), System.getProperty("amazon.aws.secretkey", "benchmark"))));
+        amazonDynamoDB.setEndpoint(System.getProperty("amazon.dynamodb.endpoint", "http://localhost:8000"));
+        DynamoDBMapperConfig mapperConfig = new DynamoDBMapperConfig(DynamoDBMapperConfig.DEFAULT,
+                new DynamoDBMapperConfig(TableNameOverride.withTableNamePrefix("Benchmark-")));
+        mapper = new DynamoDBMapper(amazonDynamoDB, mapperConfig);
+        repository = new DynamoDBRepositoryFactory(new DynamoDBTemplate(amazonDynamoDB, mapperConfig)).getRepository(UserInfoRepository.class);
+
+        CreateTableRequest tableRequest = mapper.generateCreateTableRequest(UserInfo.class);
+        tableName = tableRequest.getTableName();
+        ProvisionedThroughput throughput = new ProvisionedThroughput(1000L, 1000L);
+        tableRequest.setProvisionedThroughput(throughput);
+        for (GlobalSecondaryIndex index : tableRequest.getGlobalSecondaryIndexes()) {
+            index.setProjection(new Projection().withProjectionType(ProjectionType.ALL));
+            index.setProvisionedThroughput(throughput);
+        }
+        // left behind by an interrupted run
+        if (amazonDynamoDB.listTables().getTableNames().contains(tableName))
+            amazonDynamoDB.deleteTable(tableName);
+        TableUtils.createTableIfNotExists(amazonDynamoDB, tableRequest);
+        TableUtils.waitUntilActive(amazonDynamoDB, tableName);
+
+        List<UserInfo> infos = PerfSupport.users(users, TRAIN_NUMBERS);
+        for (int i = 0; i < infos.size(); i += 1000) {
+            mapper.batchSave(infos.subList(i, Math.min(i + 1000, infos.size())));
+        }
+        if (repository.findByEmail(email()).size() != 1)
+            throw new IllegalStateException("Users were not written to " + tableName);
+    }
+
+    @TearDown
+    public void tearDown() {
+        amazonDynamoDB.deleteTable(tableName);
+        amazonDynamoDB.shutdown();
+    }
+
+    @Benchmark
+    public int findByEmail() {
+        return repository.findByEmail(email()).size();
+    }
+
+    @Benchmark
+    public int scanByEmail() {
+        DynamoDBScanExpression scan = new DynamoDBScanExpression()
+                .withFilterExpression("email = :email")
+                .addExpressionAttributeValuesEntry(":email", new AttributeValue(email()));
+        // size() reads every page of the scan
+        return mapper.scan(UserInfo.class, scan).size();
+    }
+
+    private String email() {
+        return "user" + (next++ % users) + "@example.com";
+    }
+}
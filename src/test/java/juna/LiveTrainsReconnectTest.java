@@ -0,0 +1,149 @@
+package juna;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.util.ReflectionUtils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import juna.JunaNotifier.DigiTransitTrainsWebsocketClient;
+import juna.JunaNotifier.MyStompSessionHandler;
+
+/**
+ * Restarts the {@link ReplayServer} under a connected
+ * {@link DigiTransitTrainsWebsocketClient} and checks that the client
+ * reconnects and catches up on the trains it missed from live-trains?version=.
+ */
+public class LiveTrainsReconnectTest {
+
+    private static final int TRAIN_NUMBER = 8541;
+
+    private final List<String> alerts = new CopyOnWriteArrayList<>();
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private int port;
+    private ReplayServer server;
+    private MyStompSessionHandler sessionHandler;
+    private DigiTransitTrainsWebsocketClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        server = new ReplayServer(port);
+        server.start();
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        SubscriptionIndex subscriptionIndex = new SubscriptionIndex();
+        UserInfo info = new UserInfo("user@example.com");
+        info.setId("user");
+        info.setApprovalPending("");
+        info.getTrainIds().add(TRAIN_NUMBER + ":3");
+        subscriptionIndex.load(Collections.singletonList(info));
+
+        AlertDigest alertDigest = new AlertDigest() {
+            @Override
+            public void sendAlert(String to, String subject, String text, long eventTime) {
+                alerts.add(subject);
+            }
+        };
+        NotificationRenderer renderer = new NotificationRenderer();
+        Field juna = ReflectionUtils.findField(NotificationRenderer.class, "juna");
+        ReflectionUtils.makeAccessible(juna);
+        ReflectionUtils.setField(juna, renderer, new Juna("http://localhost", "juna@localhost"));
+        renderer.start();
+
+        sessionHandler = new MyStompSessionHandler(subscriptionIndex, new NotificationState(10, 2, 100), alertDigest, renderer,
+                meterRegistry, 200, new TrainUpdateQueue(100, meterRegistry), 1, false) {
+            @Override
+            public void afterConnected(StompSession session, StompHeaders connectedHeaders) {
+                connections.incrementAndGet();
+                super.afterConnected(session, connectedHeaders);
+            }
+        };
+        sessionHandler.startProcessing();
+        client = new DigiTransitTrainsWebsocketClient(sessionHandler, new LiveTrainsMessageConverter(subscriptionIndex, meterRegistry),
+                new TrainTrackingMessageConverter(subscriptionIndex, meterRegistry), server.getUrl(), server.getLiveTrainsUrl());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void catchesUpAfterReconnect() throws Exception {
+        client.connect();
+        // the subscription is made asynchronously, so publish until the frame arrives
+        byte[] onTime = train(100, 0);
+        assertTrue("frame not received", waitFor(() -> {
+            server.publish("/live-trains/" + TRAIN_NUMBER, onTime);
+            return sessionHandler.getLastSeenVersion() == 100;
+        }));
+        assertTrue(alerts.isEmpty());
+
+        server.close();
+        server = new ReplayServer(port);
+        // the update published while the client was away
+        server.setLiveTrains(("[" + new String(train(200, 10), StandardCharsets.UTF_8) + "]").getBytes(StandardCharsets.UTF_8));
+        server.start();
+
+        assertTrue("no alert from the gap-filled train", waitFor(() -> !alerts.isEmpty()));
+        assertEquals(2, connections.get());
+        assertEquals(1, alerts.size());
+        assertTrue(alerts.get(0), alerts.get(0).contains(Integer.toString(TRAIN_NUMBER)));
+        assertEquals(200, sessionHandler.getLastSeenVersion());
+
+        // no second catch-up
+        TimeUnit.SECONDS.sleep(1);
+        assertEquals(Collections.singletonList("version=100"), server.getLiveTrainsQueries());
+    }
+
+    private static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 60000;
+        while (System.currentTimeMillis() < deadline) {
+            if (condition.getAsBoolean())
+                return true;
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        return false;
+    }
+
+    /**
+     * A live-trains train which has departed Helsinki the given minutes late.
+     */
+    private static byte[] train(long version, int difference) {
+        LocalDate today = LocalDate.now();
+        List<String> rows = Arrays.asList(
+                row("HKI", "DEPARTURE", today + "T04:30:00.000Z", today + "T04:" + (30 + difference) + ":00.000Z", difference),
+                row("PSL", "ARRIVAL", today + "T04:33:00.000Z", null, 0));
+        return ("{\"trainNumber\":" + TRAIN_NUMBER + ",\"departureDate\":\"" + today + "\",\"commuterLineID\":\"I\","
+                + "\"cancelled\":false,\"version\":" + version + ",\"timeTableRows\":[" + String.join(",", rows) + "]}")
+                        .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String row(String station, String type, String scheduledTime, String actualTime, int difference) {
+        return "{\"stationShortCode\":\"" + station + "\",\"type\":\"" + type + "\",\"cancelled\":false,"
+                + "\"scheduledTime\":\"" + scheduledTime + "\""
+                + (actualTime != null ? ",\"actualTime\":\"" + actualTime + "\",\"differenceInMinutes\":" + difference : "")
+                + ",\"causes\":[]}";
+    }
+}
@@ -0,0 +1,204 @@
+package juna;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * Damages the log of a {@link LocalUserInfoRepository} in the ways a crash or
+ * a bad disk would and checks what the next startup makes of it.
+ */
+public class LocalUserInfoRepositoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<LocalUserInfoRepository> repositories = new ArrayList<>();
+
+    @After
+    public void tearDown() throws IOException {
+        for (LocalUserInfoRepository repository : repositories) {
+            repository.close();
+        }
+    }
+
+    @Test
+    public void recordTornMidWayIsCutOff() throws IOException {
+        Path log = folder.getRoot().toPath().resolve("userinfo.log");
+        writeUsers(log, "a", "b", "c");
+        List<Long> offsets = recordOffsets(log);
+        truncate(log, offsets.get(2) + 5);
+
+        LocalUserInfoRepository repository = open(log, 1000);
+        assertNotNull(repository.findOne("a"));
+        assertNotNull(repository.findOne("b"));
+        assertNull(repository.findOne("c"));
+        assertEquals((long) offsets.get(2), Files.size(log));
+
+        // appended behind the cut and replayed on the next startup
+        repository.save(user("d"));
+        repository.close();
+        repository = open(log, 1000);
+        assertEquals(3, repository.count());
+        assertNotNull(repository.findOne("d"));
+    }
+
+    @Test
+    public void lastRecordWithBadChecksumIsCutOff() throws IOException {
+        Path log = folder.getRoot().toPath().resolve("userinfo.log");
+        writeUsers(log, "a", "b");
+        List<Long> offsets = recordOffsets(log);
+        corruptChecksum(log, offsets.get(1));
+
+        LocalUserInfoRepository repository = open(log, 1000);
+        assertEquals(1, repository.count());
+        assertNotNull(repository.findOne("a"));
+        assertEquals((long) offsets.get(1), Files.size(log));
+    }
+
+    @Test
+    public void badChecksumBeforeOtherRecordsFailsStartup() throws IOException {
+        Path log = folder.getRoot().toPath().resolve("userinfo.log");
+        writeUsers(log, "a", "b", "c");
+        List<Long> offsets = recordOffsets(log);
+        long size = Files.size(log);
+        corruptChecksum(log, offsets.get(1));
+
+        try {
+            open(log, 1000);
+            fail("replayed a log with a corrupt record in the middle");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Corrupt record at byte " + offsets.get(1)));
+        }
+        // the records after the bad one are left for the operator
+        assertEquals(size, Files.size(log));
+    }
+
+    @Test
+    public void compactionKeepsTheLatestUsers() throws IOException {
+        Path log = folder.getRoot().toPath().resolve("userinfo.log");
+        LocalUserInfoRepository repository = open(log, 10);
+        for (int i = 0; i < 30; i++) {
+            UserInfo info = user(i % 2 == 0 ? "a" : "b");
+            info.setApprovalPending(Integer.toString(i));
+            repository.save(info);
+        }
+        repository.close();
+
+        assertTrue(recordOffsets(log).size() < 30);
+        repository = open(log, 10);
+        assertEquals(2, repository.count());
+        assertEquals("28", repository.findOne("a").getApprovalPending());
+        assertEquals("29", repository.findOne("b").getApprovalPending());
+    }
+
+    @Test
+    public void failedCompactionKeepsTheLog() throws IOException {
+        // too long a name for the temp file of the compaction to be created
+        Path log = folder.getRoot().toPath().resolve(String.join("", Collections.nCopies(250, "u")));
+        LocalUserInfoRepository repository = open(log, 10);
+        for (int i = 0; i < 30; i++) {
+            UserInfo info = user("a");
+            info.setApprovalPending(Integer.toString(i));
+            repository.save(info);
+        }
+        assertEquals("29", repository.findOne("a").getApprovalPending());
+        repository.close();
+
+        assertEquals(30, recordOffsets(log).size());
+        assertEquals(Collections.singletonList(log), listFiles(log.getParent()));
+        repository = open(log, 1000);
+        assertEquals("29", repository.findOne("a").getApprovalPending());
+    }
+
+    private LocalUserInfoRepository open(Path log, int compactionMinRecords) throws IOException {
+        LocalUserInfoRepository repository = new LocalUserInfoRepository();
+        set(repository, "file", log.toString());
+        set(repository, "sync", false);
+        set(repository, "compactionMinRecords", compactionMinRecords);
+        repository.open();
+        repositories.add(repository);
+        return repository;
+    }
+
+    private void writeUsers(Path log, String... ids) throws IOException {
+        LocalUserInfoRepository repository = open(log, 1000);
+        for (String id : ids) {
+            repository.save(user(id));
+        }
+        repository.close();
+    }
+
+    private static UserInfo user(String id) {
+        UserInfo info = new UserInfo(id + "@example.com");
+        info.setId(id);
+        info.setApprovalPending("");
+        info.getTrainIds().add("8541:3");
+        return info;
+    }
+
+    /**
+     * The offsets of the records, each a length and a checksum followed by
+     * the length bytes of the record.
+     */
+    private static List<Long> recordOffsets(Path log) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(log));
+        List<Long> offsets = new ArrayList<>();
+        while (buffer.remaining() >= 8) {
+            offsets.add((long) buffer.position());
+            int length = buffer.getInt();
+            buffer.position(Math.min(buffer.limit(), buffer.position() + 4 + length));
+        }
+        return offsets;
+    }
+
+    private static void corruptChecksum(Path log, long offset) throws IOException {
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer checksum = ByteBuffer.allocate(4);
+            channel.read(checksum, offset + 4);
+            checksum.putInt(0, ~checksum.getInt(0));
+            checksum.rewind();
+            channel.write(checksum, offset + 4);
+        }
+    }
+
+    private static void truncate(Path log, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+
+    private static List<Path> listFiles(Path directory) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> stream = Files.list(directory)) {
+            stream.forEach(files::add);
+        }
+        return files;
+    }
+
+    private static void set(Object target, String name, Object value) {
+        Field field = ReflectionUtils.findField(target.getClass(), name);
+        ReflectionUtils.makeAccessible(field);
+        ReflectionUtils.setField(field, target, value);
+    }
+}
@@ -0,0 +1,46 @@
+package juna;
+
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.util.ReflectionUtils;
+
+import juna.NotificationRenderer.RenderedAlert;
+
+/**
+ * Renders an alert for two followers of the same train and checks that each
+ * gets their own values, with the removal link encoded.
+ */
+public class NotificationRendererTest {
+
+    private NotificationRenderer renderer;
+
+    @Before
+    public void setUp() throws Exception {
+        renderer = new NotificationRenderer();
+        Field juna = ReflectionUtils.findField(NotificationRenderer.class, "juna");
+        ReflectionUtils.makeAccessible(juna);
+        ReflectionUtils.setField(juna, renderer, new Juna("http://localhost", "juna@localhost"));
+        renderer.start();
+    }
+
+    @Test
+    public void removalLinkIsEncodedPerRecipient() {
+        Train train = new Train(8541, "2026-10-18", "I", false, 100, Collections.emptyList(), 0);
+        RenderedAlert alert = renderer.recovered(train, 1);
+
+        Subscription subscription = new Subscription("8541:3", 8541, 3, new UserInfo("a+b@example.com"));
+        String first = alert.getText(subscription);
+        String second = alert.getText(new Subscription("8541:5", 8541, 5, new UserInfo("c&d=e@example.com")));
+
+        assertTrue(first, first.contains("raja-arvon 3."));
+        assertTrue(first, first.endsWith("http://localhost/trains/remove?email=a%2Bb%40example.com&trainId=8541%3A3"));
+        assertTrue(second, second.contains("raja-arvon 5."));
+        assertTrue(second, second.endsWith("http://localhost/trains/remove?email=c%26d%3De%40example.com&trainId=8541%3A5"));
+        assertTrue(alert.getSubject(subscription), alert.getSubject(subscription).startsWith("Juna I (8541) on "));
+    }
+}
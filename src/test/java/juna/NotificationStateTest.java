@@ -0,0 +1,82 @@
+package juna;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.LocalDate;
+
+import org.junit.Test;
+
+import juna.NotificationState.Notification;
+
+public class NotificationStateTest {
+
+    private static final String EMAIL = "user@example.com";
+    private static final int TRAIN_NUMBER = 8541;
+    private static final String TODAY = LocalDate.now().toString();
+
+    private final NotificationState state = new NotificationState(10, 2, 100);
+
+    @Test
+    public void flappingDelayIsReportedOnce() {
+        assertEquals(Notification.LATE, difference(5, 6));
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Notification.NONE, difference(5, 5));
+            assertEquals(Notification.NONE, difference(5, 6));
+        }
+        assertEquals(Notification.NONE, difference(5, 4));
+        assertEquals(Notification.RECOVERED, difference(5, 3));
+        assertEquals(Notification.NONE, difference(5, 4));
+        assertEquals(Notification.LATE, difference(5, 6));
+    }
+
+    @Test
+    public void smallThresholdRecoversOnTime() {
+        assertEquals(Notification.LATE, difference(1, 2));
+        assertEquals(Notification.NONE, difference(1, 1));
+        assertEquals(Notification.RECOVERED, difference(1, 0));
+    }
+
+    @Test
+    public void growingDelayIsReportedPerBand() {
+        assertEquals(Notification.LATE, difference(5, 6));
+        assertEquals(Notification.NONE, difference(5, 15));
+        assertEquals(Notification.LATE, difference(5, 16));
+    }
+
+    @Test
+    public void subscriptionsOnTheSameTrainKeepTheirOwnBands() {
+        // 3 minutes at PSL and 10 minutes at TPE, updated with the same estimates
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i == 0 ? Notification.LATE : Notification.NONE, state.difference(EMAIL, TRAIN_NUMBER, "8541:3@PSL", TODAY, 3, 5));
+            assertEquals(Notification.NONE, state.difference(EMAIL, TRAIN_NUMBER, "8541:10@TPE", TODAY, 10, 8));
+        }
+        assertEquals(Notification.NONE, state.difference(EMAIL, TRAIN_NUMBER, "8541:3@PSL", TODAY, 3, 12));
+        assertEquals(Notification.LATE, state.difference(EMAIL, TRAIN_NUMBER, "8541:10@TPE", TODAY, 10, 12));
+        assertEquals(Notification.NONE, state.difference(EMAIL, TRAIN_NUMBER, "8541:3@PSL", TODAY, 3, 12));
+        assertEquals(Notification.NONE, state.difference(EMAIL, TRAIN_NUMBER, "8541:10@TPE", TODAY, 10, 12));
+    }
+
+    @Test
+    public void cancellationIsReportedOncePerTrain() {
+        assertEquals(Notification.CANCELLED, state.cancelled(EMAIL, TRAIN_NUMBER, TODAY));
+        assertEquals(Notification.NONE, state.cancelled(EMAIL, TRAIN_NUMBER, TODAY));
+    }
+
+    @Test
+    public void popularTrainMayUseAllStates() {
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Notification.LATE, state.difference("user" + i + "@example.com", TRAIN_NUMBER, "8541", TODAY, 5, 6));
+        }
+        // all on one stripe, none evicted
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Notification.NONE, state.difference("user" + i + "@example.com", TRAIN_NUMBER, "8541", TODAY, 5, 6));
+        }
+        assertEquals(Notification.LATE, state.difference("user100@example.com", TRAIN_NUMBER, "8541", TODAY, 5, 6));
+        // the least recently used one made room for it
+        assertEquals(Notification.LATE, state.difference("user0@example.com", TRAIN_NUMBER, "8541", TODAY, 5, 6));
+    }
+
+    private Notification difference(int threshold, int difference) {
+        return state.difference(EMAIL, TRAIN_NUMBER, TRAIN_NUMBER + ":" + threshold, TODAY, threshold, difference);
+    }
+}
@@ -0,0 +1,142 @@
+package juna;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.tomcat.websocket.server.WsSci;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.config.MessageBrokerRegistry;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.context.support.AnnotationConfigWebApplicationContext;
+import org.springframework.web.servlet.DispatcherServlet;
+import org.springframework.web.servlet.config.annotation.EnableWebMvc;
+import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
+import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
+import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerConfigurer;
+
+/**
+ * Local stand-in for the rata.digitraffic.fi SockJS/STOMP endpoint. Frames
+ * published here are delivered to the subscribers of their destination by
+ * Spring's simple broker, at /api/v1/websockets/ on an ephemeral or given
+ * port. /api/v1/live-trains answers with the trains set with
+ * {@link #setLiveTrains(byte[])} and records its queries.
+ */
+public class ReplayServer implements AutoCloseable {
+
+    public static final String ENDPOINT = "/api/v1/websockets";
+    public static final String LIVE_TRAINS = "/api/v1/live-trains";
+
+    private final Tomcat tomcat;
+    private final AnnotationConfigWebApplicationContext context;
+    private SimpMessagingTemplate messagingTemplate;
+
+    private volatile byte[] liveTrains = "[]".getBytes(StandardCharsets.UTF_8);
+    private final List<String> liveTrainsQueries = new CopyOnWriteArrayList<>();
+
+    @Configuration
+    @EnableWebMvc
+    @EnableWebSocketMessageBroker
+    public static class BrokerConfig implements WebSocketMessageBrokerConfigurer {
+
+        @Override
+        public void registerStompEndpoints(StompEndpointRegistry registry) {
+            registry.addEndpoint(ENDPOINT).withSockJS().setStreamBytesLimit(Integer.MAX_VALUE);
+        }
+
+        @Override
+        public void configureMessageBroker(MessageBrokerRegistry registry) {
+            registry.enableSimpleBroker("/live-trains", "/train-tracking");
+        }
+    }
+
+    public ReplayServer() throws Exception {
+        this(0);
+    }
+
+    /**
+     * A stand-in on a fixed port, so that a restarted one is found at the same
+     * URL.
+     */
+    public ReplayServer(int port) throws Exception {
+        File baseDir = Files.createTempDirectory("replay-server").toFile();
+        baseDir.deleteOnExit();
+        tomcat = new Tomcat();
+        tomcat.setBaseDir(baseDir.getAbsolutePath());
+        Connector connector = new Connector();
+        connector.setPort(port);
+        tomcat.getService().addConnector(connector);
+        tomcat.setConnector(connector);
+
+        context = new AnnotationConfigWebApplicationContext();
+        context.register(BrokerConfig.class);
+        Context servletContext = tomcat.addContext("", baseDir.getAbsolutePath());
+        servletContext.addServletContainerInitializer(new WsSci(), null);
+        Tomcat.addServlet(servletContext, "dispatcher", new DispatcherServlet(context)).setLoadOnStartup(1);
+        servletContext.addServletMappingDecoded("/", "dispatcher");
+        Tomcat.addServlet(servletContext, "live-trains", new HttpServlet() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+                liveTrainsQueries.add(request.getQueryString());
+                response.setContentType("application/json");
+                response.getOutputStream().write(liveTrains);
+            }
+        });
+        servletContext.addServletMappingDecoded(LIVE_TRAINS, "live-trains");
+    }
+
+    public void start() throws LifecycleException {
+        tomcat.start();
+        messagingTemplate = context.getBean(SimpMessagingTemplate.class);
+    }
+
+    public String getUrl() {
+        return "http://localhost:" + tomcat.getConnector().getLocalPort() + ENDPOINT + "/";
+    }
+
+    public String getLiveTrainsUrl() {
+        return "http://localhost:" + tomcat.getConnector().getLocalPort() + LIVE_TRAINS;
+    }
+
+    public void setLiveTrains(byte[] liveTrains) {
+        this.liveTrains = liveTrains;
+    }
+
+    /**
+     * Query strings of the /api/v1/live-trains requests so far.
+     */
+    public List<String> getLiveTrainsQueries() {
+        return liveTrainsQueries;
+    }
+
+    public void publish(String destination, byte[] payload) {
+        // a text content type keeps the frame sendable over SockJS
+        SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.create();
+        headers.setContentType(MimeTypeUtils.APPLICATION_JSON);
+        headers.setLeaveMutable(true);
+        messagingTemplate.send(destination, MessageBuilder.createMessage(payload, headers.getMessageHeaders()));
+    }
+
+    @Override
+    public void close() throws LifecycleException {
+        context.close();
+        tomcat.stop();
+        tomcat.destroy();
+    }
+}
@@ -0,0 +1,160 @@
+package juna;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.ui.ExtendedModelMap;
+import org.springframework.util.ReflectionUtils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import juna.JunaNotifier.MyStompSessionHandler;
+
+/**
+ * Approves a subscription through {@link TrainsController} on a node which
+ * uses the TrainSubscription table and checks that the next frame of the
+ * train sends the alert, i.e. the node does not replace its fresh index entry
+ * with what the table held before the write-behind flush.
+ */
+public class SubscriptionApprovalTest {
+
+    private static final int TRAIN_NUMBER = 8541;
+    private static final String EMAIL = "user@example.com";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> alerts = new CopyOnWriteArrayList<>();
+    private final AtomicInteger queries = new AtomicInteger();
+
+    private InMemoryClusterMembership membership;
+    private ShardAssignment shardAssignment;
+    private LocalUserInfoRepository repository;
+    private TrainsController controller;
+    private MyStompSessionHandler sessionHandler;
+
+    @Before
+    public void setUp() throws Exception {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        SubscriptionIndex subscriptionIndex = new SubscriptionIndex();
+        Juna juna = new Juna("http://localhost", "juna@localhost");
+
+        // a table the write-behind flush has not reached yet
+        TrainSubscriptionStore trainSubscriptionStore = new TrainSubscriptionStore() {
+            @Override
+            public boolean isEnabled() {
+                return true;
+            }
+
+            @Override
+            public List<Subscription> findByTrainNumber(int trainNumber) {
+                queries.incrementAndGet();
+                return Collections.emptyList();
+            }
+        };
+
+        membership = new InMemoryClusterMembership("approval-" + System.nanoTime(), "node-1");
+        membership.join();
+        shardAssignment = new ShardAssignment();
+        set(shardAssignment, "membership", membership);
+        set(shardAssignment, "subscriptionIndex", subscriptionIndex);
+        set(shardAssignment, "trainSubscriptionStore", trainSubscriptionStore);
+        set(shardAssignment, "meterRegistry", meterRegistry);
+        set(shardAssignment, "virtualNodes", 64);
+        shardAssignment.start();
+
+        repository = new LocalUserInfoRepository();
+        set(repository, "file", folder.newFile("userinfo.log").toString());
+        set(repository, "sync", false);
+        set(repository, "compactionMinRecords", 1000);
+        repository.open();
+
+        controller = new TrainsController();
+        set(controller, "juna", juna);
+        set(controller, "repository", repository);
+        set(controller, "subscriptionIndex", subscriptionIndex);
+        set(controller, "emailService", new EmailService() {
+            @Override
+            public void sendSimpleMessage(String to, String subject, String text) {
+            }
+
+            @Override
+            public void sendSimpleMessage(String to, String subject, String text, long eventTime) {
+            }
+        });
+
+        AlertDigest alertDigest = new AlertDigest() {
+            @Override
+            public void sendAlert(String to, String subject, String text, long eventTime) {
+                alerts.add(subject);
+            }
+        };
+        NotificationRenderer renderer = new NotificationRenderer();
+        set(renderer, "juna", juna);
+        renderer.start();
+        sessionHandler = new MyStompSessionHandler(subscriptionIndex, new NotificationState(10, 2, 100), alertDigest, renderer,
+                meterRegistry, 200, new TrainUpdateQueue(100, meterRegistry), 1, false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        shardAssignment.stop();
+        membership.leave();
+        repository.close();
+    }
+
+    @Test
+    public void approvedSubscriptionIsAlerted() throws Exception {
+        UserInfo info = new UserInfo(EMAIL);
+        info.setApprovalPending("uuid");
+        info.getTrainIds().add(TRAIN_NUMBER + ":3");
+        repository.save(info);
+
+        controller.approveUser(new ExtendedModelMap(), "uuid", EMAIL);
+        // let any reload the approval caused run before the frame
+        Field field = ReflectionUtils.findField(ShardAssignment.class, "reloader");
+        ReflectionUtils.makeAccessible(field);
+        ((ExecutorService) ReflectionUtils.getField(field, shardAssignment)).submit(() -> { }).get(10, TimeUnit.SECONDS);
+
+        sessionHandler.handleLiveTrains(Collections.singletonList(train(10)));
+
+        assertEquals(1, alerts.size());
+        assertTrue(alerts.get(0), alerts.get(0).contains(Integer.toString(TRAIN_NUMBER)));
+        assertEquals(0, queries.get());
+    }
+
+    /**
+     * A train which has departed Helsinki the given minutes late.
+     */
+    private static Train train(int difference) {
+        LocalDate today = LocalDate.now();
+        long departure = Instant.parse(today + "T04:30:00Z").toEpochMilli();
+        List<TimeTableRow> rows = Arrays.asList(
+                new TimeTableRow("HKI", "DEPARTURE", departure, departure + TimeUnit.MINUTES.toMillis(difference), TimeTableRow.NO_TIME,
+                        difference, false, Collections.emptyList()),
+                new TimeTableRow("PSL", "ARRIVAL", departure + TimeUnit.MINUTES.toMillis(3), TimeTableRow.NO_TIME, TimeTableRow.NO_TIME,
+                        0, false, Collections.emptyList()));
+        return new Train(TRAIN_NUMBER, today.toString(), "I", false, 100, rows, System.currentTimeMillis());
+    }
+
+    private static void set(Object target, String name, Object value) {
+        Field field = ReflectionUtils.findField(target.getClass(), name);
+        ReflectionUtils.makeAccessible(field);
+        ReflectionUtils.setField(field, target, value);
+    }
+}
@@ -0,0 +1,111 @@
+package juna;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.Field;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.util.ReflectionUtils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Checks that {@link TrainStatusPublisher} only keeps the latest status of
+ * trains which are followed on this node and still running.
+ */
+public class TrainStatusPublisherTest {
+
+    private static final int TRAIN_NUMBER = 8541;
+
+    private final List<Message<?>> sent = new CopyOnWriteArrayList<>();
+
+    private SubscriptionIndex subscriptionIndex;
+    private UserInfo info;
+    private TrainStatusPublisher publisher;
+
+    @Before
+    public void setUp() {
+        subscriptionIndex = new SubscriptionIndex();
+        info = new UserInfo("user@example.com");
+        info.setId("user");
+        info.setApprovalPending("");
+        info.getTrainIds().add(TRAIN_NUMBER + ":3");
+        subscriptionIndex.load(Collections.singletonList(info));
+
+        publisher = new TrainStatusPublisher(new SimpleMeterRegistry());
+        set(publisher, "messagingTemplate", new SimpMessagingTemplate((message, timeout) -> sent.add(message)));
+        set(publisher, "juna", new Juna("http://localhost", "juna@localhost"));
+        set(publisher, "subscriptionIndex", subscriptionIndex);
+        publisher.start();
+    }
+
+    @Test
+    public void droppedWhenNoLongerFollowed() {
+        Train train = train();
+        publisher.publish(train, train.getTimeTableRows().get(0), 5, train.getUpdatedAt());
+        assertNotNull(publisher.getStatus(TRAIN_NUMBER));
+
+        subscriptionIndex.remove(info);
+        assertNull(publisher.getStatus(TRAIN_NUMBER));
+
+        // an update of a train nobody follows any more is not kept either
+        publisher.publish(train, train.getTimeTableRows().get(0), 5, train.getUpdatedAt());
+        assertNull(publisher.getStatus(TRAIN_NUMBER));
+    }
+
+    @Test
+    public void droppedWhenOwnedByAnotherNode() {
+        Train train = train();
+        publisher.publish(train, train.getTimeTableRows().get(0), 5, train.getUpdatedAt());
+        assertNotNull(publisher.getStatus(TRAIN_NUMBER));
+
+        subscriptionIndex.setShard(trainNumber -> trainNumber != TRAIN_NUMBER);
+        assertNull(publisher.getStatus(TRAIN_NUMBER));
+    }
+
+    @Test
+    public void droppedWhenTheRunFinishes() {
+        Train train = train();
+        publisher.publish(train, train.getTimeTableRows().get(0), 5, train.getUpdatedAt());
+        assertNotNull(publisher.getStatus(TRAIN_NUMBER));
+
+        publisher.publish(train, train.getTimeTableRows().get(1), 4, train.getUpdatedAt());
+        assertNull(publisher.getStatus(TRAIN_NUMBER));
+        // the browsers following the train still get the final status
+        assertEquals(2, sent.size());
+    }
+
+    /**
+     * A train which has departed Helsinki 5 minutes late and arrived in Pasila
+     * 4 minutes late.
+     */
+    private static Train train() {
+        LocalDate today = LocalDate.now();
+        long departure = Instant.parse(today + "T04:30:00Z").toEpochMilli();
+        long arrival = departure + TimeUnit.MINUTES.toMillis(3);
+        List<TimeTableRow> rows = Arrays.asList(
+                new TimeTableRow("HKI", "DEPARTURE", departure, departure + TimeUnit.MINUTES.toMillis(5), TimeTableRow.NO_TIME,
+                        5, false, Collections.emptyList()),
+                new TimeTableRow("PSL", "ARRIVAL", arrival, arrival + TimeUnit.MINUTES.toMillis(4), TimeTableRow.NO_TIME,
+                        4, false, Collections.emptyList()));
+        return new Train(TRAIN_NUMBER, today.toString(), "I", false, 100, rows, System.currentTimeMillis());
+    }
+
+    private static void set(Object target, String name, Object value) {
+        Field field = ReflectionUtils.findField(target.getClass(), name);
+        ReflectionUtils.makeAccessible(field);
+        ReflectionUtils.setField(field, target, value);
+    }
+}